@@ -7,6 +7,25 @@ import java.nio.ByteBuffer;
  */
 public class ActualMessageManager {
 
+    // Encoded lengths of the fixed size messages, including the length field
+    static final int CONTROL_MESSAGE_LENGTH = 5;
+    static final int HAVE_MESSAGE_LENGTH = 9;
+    static final int REQUEST_MESSAGE_LENGTH = 17;
+    static final int PIECE_HEADER_LENGTH = 13;
+
+    // Encoded choke, unchoke, interested and not interested messages, indexed
+    // by message type. They never change, so they are encoded once and shared
+    private static final byte[][] CONTROL_MESSAGES = new byte[4][];
+
+    static {
+        for (byte messageType = 0; messageType < CONTROL_MESSAGES.length; messageType++) {
+            CONTROL_MESSAGES[messageType] = ByteBuffer.allocate(CONTROL_MESSAGE_LENGTH)
+                    .putInt(1)
+                    .put(messageType)
+                    .array();
+        }
+    }
+
     /**
      * Generates an actual message byte array from the message length, type, and
      * payload.
@@ -32,6 +51,102 @@ public class ActualMessageManager {
         return buffer.array();
     }
 
+    /*
+     * The encode methods below write a message into a buffer supplied by the
+     * caller, which may be a direct buffer, at the buffer's position. The
+     * caller makes sure the buffer has room for the message.
+     */
+
+    /**
+     * Encodes a message without payload: choke, unchoke, interested or not
+     * interested, copied from the shared pre-encoded message.
+     *
+     * @param buffer      The buffer to write to.
+     * @param messageType The message type, 0 to 3.
+     */
+    public static void encodeControlMessage(ByteBuffer buffer, byte messageType) {
+        buffer.put(CONTROL_MESSAGES[messageType]);
+    }
+
+    /**
+     * Encodes a have message.
+     *
+     * @param buffer     The buffer to write to.
+     * @param pieceIndex The index of the piece.
+     */
+    public static void encodeHaveMessage(ByteBuffer buffer, int pieceIndex) {
+        buffer.putInt(5);
+        buffer.put(MessageCodec.HAVE);
+        buffer.putInt(pieceIndex);
+    }
+
+    /**
+     * Encodes a request message for one block.
+     *
+     * @param buffer      The buffer to write to.
+     * @param pieceIndex  The index of the piece.
+     * @param blockOffset The offset of the block within the piece.
+     * @param blockLength The length of the block.
+     */
+    public static void encodeRequestMessage(ByteBuffer buffer, int pieceIndex, int blockOffset, int blockLength) {
+        buffer.putInt(13);
+        buffer.put(MessageCodec.REQUEST);
+        buffer.putInt(pieceIndex);
+        buffer.putInt(blockOffset);
+        buffer.putInt(blockLength);
+    }
+
+    /**
+     * Encodes a cancel message for one block, laid out like a request
+     * message.
+     *
+     * @param buffer      The buffer to write to.
+     * @param pieceIndex  The index of the piece.
+     * @param blockOffset The offset of the block within the piece.
+     * @param blockLength The length of the block.
+     */
+    public static void encodeCancelMessage(ByteBuffer buffer, int pieceIndex, int blockOffset, int blockLength) {
+        buffer.putInt(13);
+        buffer.put(MessageCodec.CANCEL);
+        buffer.putInt(pieceIndex);
+        buffer.putInt(blockOffset);
+        buffer.putInt(blockLength);
+    }
+
+    /**
+     * Encodes the header of a piece message. The block content follows
+     * separately, written straight from the file.
+     *
+     * @param buffer      The buffer to write to.
+     * @param pieceIndex  The index of the piece.
+     * @param blockOffset The offset of the block within the piece.
+     * @param blockLength The length of the block content.
+     */
+    public static void encodePieceMessageHeader(ByteBuffer buffer, int pieceIndex, int blockOffset,
+            int blockLength) {
+        buffer.putInt(blockLength + 9);
+        buffer.put(MessageCodec.PIECE);
+        buffer.putInt(pieceIndex);
+        buffer.putInt(blockOffset);
+    }
+
+    /**
+     * Encodes an actual message with an arbitrary payload, such as a bitfield.
+     *
+     * @param buffer         The buffer to write to.
+     * @param messageType    The message type.
+     * @param messagePayload The payload, null if there is none.
+     */
+    public static void encodeActualMessage(ByteBuffer buffer, byte messageType, byte[] messagePayload) {
+        int payloadLength = messagePayload == null ? 0 : messagePayload.length;
+        buffer.putInt(payloadLength + 1);
+        buffer.put(messageType);
+
+        if (messagePayload != null) {
+            buffer.put(messagePayload);
+        }
+    }
+
     /**
      * Reads an actual message from a ByteBuffer and returns a string representation
      * of the message.
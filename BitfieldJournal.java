@@ -0,0 +1,156 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * The BitfieldJournal class records which pieces of the shared file are
+ * complete in a journal next to it, so a restarted peer resumes with the
+ * pieces it already has instead of downloading them again. The journal is a
+ * header identifying the file layout followed by one record per completed
+ * piece. Records are appended and forced to the storage device only after the
+ * piece data itself has been forced, so the journal never claims a piece a
+ * crash could have lost. A record cut short by a crash is ignored when the
+ * journal is loaded.
+ */
+public class BitfieldJournal {
+
+    // First bytes of every journal, "BFJ1"
+    private static final int MAGIC = 0x42464A31;
+
+    // Magic, piece size and file size
+    private static final int HEADER_LENGTH = 16;
+
+    // One piece index per record
+    private static final int RECORD_LENGTH = 4;
+
+    private final Path path;
+    private final long fileSize;
+    private final int pieceSize;
+    private final int numPieces;
+
+    // Journal opened for appending, null until rewrite has been called
+    private FileChannel channel;
+
+    /**
+     * @param filePath  The path of the shared file. The journal is kept next
+     *                  to it.
+     * @param fileSize  The size of the shared file in bytes.
+     * @param pieceSize The piece size in bytes.
+     * @param numPieces The number of pieces of the file.
+     */
+    public BitfieldJournal(String filePath, long fileSize, int pieceSize, int numPieces) {
+        this.path = Paths.get(filePath + ".journal");
+        this.fileSize = fileSize;
+        this.pieceSize = pieceSize;
+        this.numPieces = numPieces;
+    }
+
+    /**
+     * Reads the pieces recorded in the journal. A journal that is missing, or
+     * was written for a different file size or piece size, records none.
+     *
+     * @return The recorded pieces.
+     */
+    public BitSet load() {
+        BitSet pieces = new BitSet(numPieces);
+        if (!Files.exists(path)) {
+            return pieces;
+        }
+        try {
+            ByteBuffer journal = ByteBuffer.wrap(Files.readAllBytes(path));
+            if (journal.remaining() < HEADER_LENGTH || journal.getInt() != MAGIC
+                    || journal.getInt() != pieceSize || journal.getLong() != fileSize) {
+                return pieces;
+            }
+            // A trailing partial record was cut short by a crash
+            while (journal.remaining() >= RECORD_LENGTH) {
+                int piece = journal.getInt();
+                if (piece >= 0 && piece < numPieces) {
+                    pieces.set(piece);
+                }
+            }
+        } catch (IOException e) {
+            // e.printStackTrace();
+        }
+        return pieces;
+    }
+
+    /**
+     * Replaces the journal with one recording exactly the given pieces, and
+     * opens it for appending. The new journal is written to a temporary file
+     * that replaces the old one in a single rename, so a crash leaves either
+     * the old or the new journal.
+     *
+     * @param pieces The complete pieces.
+     * @throws IOException
+     */
+    public synchronized void rewrite(BitSet pieces) throws IOException {
+        close();
+
+        ByteBuffer journal = ByteBuffer.allocate(HEADER_LENGTH + pieces.cardinality() * RECORD_LENGTH);
+        journal.putInt(MAGIC).putInt(pieceSize).putLong(fileSize);
+        for (int piece = pieces.nextSetBit(0); piece >= 0; piece = pieces.nextSetBit(piece + 1)) {
+            journal.putInt(piece);
+        }
+        journal.flip();
+
+        Path temporary = Paths.get(path + ".tmp");
+        try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (journal.hasRemaining()) {
+                out.write(journal);
+            }
+            out.force(true);
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Appends pieces whose data has been forced to the storage device, and
+     * forces the records as well.
+     *
+     * @param pieces The indices of the pieces.
+     */
+    public synchronized void record(List<Integer> pieces) {
+        if (channel == null) {
+            return;
+        }
+        ByteBuffer records = ByteBuffer.allocate(pieces.size() * RECORD_LENGTH);
+        for (int piece : pieces) {
+            records.putInt(piece);
+        }
+        records.flip();
+        try {
+            while (records.hasRemaining()) {
+                channel.write(records);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            // e.printStackTrace();
+        }
+    }
+
+    /**
+     * Closes the journal. Later records are dropped.
+     */
+    public synchronized void close() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // e.printStackTrace();
+        }
+        channel = null;
+    }
+}
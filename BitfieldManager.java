@@ -1,19 +1,24 @@
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
-
+import java.util.BitSet;
+
+/**
+ * The BitfieldManager class holds which pieces of the file a peer has. The
+ * pieces are kept as bits of long words, 64 pieces per word with piece i in
+ * bit i % 64 of word i / 64, the layout of java.util.BitSet, so comparing two
+ * bitfields takes one instruction per 64 pieces. The number of pieces set is
+ * counted as they are set. Bitfield messages use a byte array with the first
+ * piece in the high bit of the first byte; it is converted only when a
+ * bitfield is sent or received.
+ */
 public class BitfieldManager {
-    private byte[] bitfield;
 
-    public synchronized byte[] getBitfield() {
-        return bitfield;
-    }
+    // Pieces as bits, the bits past the last piece are always clear
+    private final long[] words;
 
-    public synchronized void setBitfield(byte[] bitfield) {
-        this.bitfield = bitfield;
-    }
+    // Number of bits set in words
+    private int numContainedPieces;
 
-    int fileSize;
+    long fileSize;
     int pieceSize;
     int numPieces;
 
@@ -21,119 +26,135 @@ public class BitfieldManager {
         return numPieces;
     }
 
-    public void setNumPieces(int numPieces) {
-        this.numPieces = numPieces;
-    }
-
+    // Size of the bitfield message payload in bytes
     int bitFieldSize;
 
-    public BitfieldManager(int fileSize, int pieceSize) {
+    public BitfieldManager(long fileSize, int pieceSize) {
         this.fileSize = fileSize;
         this.pieceSize = pieceSize;
 
         // Calculate the number of pieces
-        numPieces = (int) Math.ceil((double) fileSize / pieceSize);
+        numPieces = Math.toIntExact((fileSize + pieceSize - 1) / pieceSize);
 
         // Calculate the size of the bitfield in bytes
+        this.bitFieldSize = (numPieces + 7) / 8;
+        this.words = new long[(numPieces + 63) / 64];
+    }
+
+    public int getBitFieldSize() {
+        return bitFieldSize;
+    }
 
-        int bitFieldSize = (int) Math.ceil((double) numPieces / 8);
-        this.bitFieldSize = bitFieldSize;
-        bitfield = new byte[bitFieldSize];
+    // Replace the pieces with the ones of a received bitfield message
+    // payload. Bits past the last piece are ignored
+    public synchronized void setBitfield(byte[] bitfield) {
+        Arrays.fill(words, 0);
+        for (int i = 0; i < Math.min(bitfield.length, bitFieldSize); i++) {
+            // Reverse the bit order, the first piece of a byte is its high bit
+            long pieces = Integer.reverse(bitfield[i] & 0xFF) >>> 24;
+            words[i / 8] |= pieces << (i % 8 * 8);
+        }
+        clearPastLastPiece();
+        numContainedPieces = countPieces();
+        notifyAll();
     }
 
     // Fill all 1s in bitfield
     public synchronized void fillBitfield() {
-        for (int i = 0; i < numPieces; i++) {
-            setPiece(i);
-        }
+        Arrays.fill(words, -1L);
+        clearPastLastPiece();
+        numContainedPieces = numPieces;
+        notifyAll();
     }
 
     // Set a specific piece in the bitfield
     public synchronized void setPiece(int pieceIndex) {
-        int byteIndex = pieceIndex / 8;
-        int bitIndex = pieceIndex % 8;
-        bitfield[byteIndex] |= (1 << (7 - bitIndex));
+        long bit = 1L << pieceIndex;
+        if ((words[pieceIndex >>> 6] & bit) == 0) {
+            words[pieceIndex >>> 6] |= bit;
+            numContainedPieces++;
+        }
+        notifyAll();
+    }
+
+    // Wait until a specific piece is set in the bitfield or the timeout
+    // expires, returns true if the piece is set
+    public synchronized boolean awaitPiece(int pieceIndex, long timeoutMillis) throws InterruptedException {
+        if (!hasPiece(pieceIndex)) {
+            wait(timeoutMillis);
+        }
+        return hasPiece(pieceIndex);
     }
 
     // Check if a specific piece is set in the bitfield
     public synchronized boolean hasPiece(int pieceIndex) {
-        int byteIndex = pieceIndex / 8;
-        int bitIndex = pieceIndex % 8;
-        return (bitfield[byteIndex] & (1 << (7 - bitIndex))) != 0;
+        return (words[pieceIndex >>> 6] & (1L << pieceIndex)) != 0;
     }
 
-    // Get the byte array representing the bitfield
+    // Get the bitfield as the payload of a bitfield message
     public synchronized byte[] getBitField() {
-        return Arrays.copyOf(bitfield, bitfield.length);
+        byte[] bitfield = new byte[bitFieldSize];
+        for (int i = 0; i < bitFieldSize; i++) {
+            int pieces = (int) (words[i / 8] >>> (i % 8 * 8)) & 0xFF;
+            bitfield[i] = (byte) (Integer.reverse(pieces) >>> 24);
+        }
+        return bitfield;
+    }
+
+    // Get a copy of the pieces as a BitSet
+    public synchronized BitSet getPieces() {
+        return BitSet.valueOf(words);
     }
 
     public synchronized int getNumContainedPieces() {
-        int totalContainedPieces = 0;
-        for (int i = 0; i < numPieces; i++) {
-            if (hasPiece(i)) {
-                totalContainedPieces++;
-            }
-        }
-        return totalContainedPieces;
+        return numContainedPieces;
     }
 
     public synchronized boolean hasCompelteFile() {
-        if (getNumContainedPieces() == numPieces) {
-            return true;
-        } else {
-            return false;
-        }
+        return numContainedPieces == numPieces;
     }
 
-    public synchronized boolean interested(byte[] bitfield1, byte[] bitfield2) {
-        // Check if the lengths of both bitfields are the same
-        if (bitfield1.length != bitfield2.length) {
-            throw new IllegalArgumentException("Bitfields must have the same length");
+    // Check if the other bitfield has pieces that this one is missing
+    public boolean interested(BitfieldManager other) {
+        long[] otherWords = other.copyWords();
+        synchronized (this) {
+            for (int i = 0; i < words.length; i++) {
+                if ((otherWords[i] & ~words[i]) != 0) {
+                    return true;
+                }
+            }
         }
+        return false;
+    }
 
-        // Iterate through each byte in the bitfields
-        for (int i = 0; i < bitfield1.length; i++) {
-            // Use bitwise AND to find the pieces in bitfield2 that are not present in
-            // bitfield1
-            byte interestingPieces = (byte) (bitfield2[i] & ~bitfield1[i]);
-
-            // If there are interesting pieces, return true
-            if (interestingPieces != 0) {
-                return true;
+    // Calculate the pieces the other bitfield has that this one is missing
+    public BitSet missingPieces(BitfieldManager other) {
+        long[] missingWords = other.copyWords();
+        synchronized (this) {
+            for (int i = 0; i < words.length; i++) {
+                missingWords[i] &= ~words[i];
             }
         }
+        return BitSet.valueOf(missingWords);
+    }
 
-        // No interesting pieces found
-        return false;
+    // Copied before comparing with another bitfield, so two bitfields are
+    // never locked at once
+    private synchronized long[] copyWords() {
+        return words.clone();
     }
 
-    // Calculate missing pieces in bitfield2 compared to bitfield1
-    public synchronized List<Integer> missingPieces(byte[] bitfield1, byte[] bitfield2) {
-        // Check if the lengths of both bitfields are the same
-        if (bitfield1.length != bitfield2.length) {
-            throw new IllegalArgumentException("Bitfields must have the same length");
+    private void clearPastLastPiece() {
+        if (numPieces % 64 != 0) {
+            words[words.length - 1] &= (1L << numPieces) - 1;
         }
+    }
 
-        List<Integer> missingPieces = new ArrayList<>();
-
-        // Iterate through each byte in the bitfields
-        for (int i = 0; i < bitfield1.length; i++) {
-            // Use bitwise AND to find the pieces in bitfield2 that are not present in
-            // bitfield1
-            byte interestingPieces = (byte) (bitfield2[i] & ~bitfield1[i]);
-
-            // If there are interesting pieces, iterate through bits and add missing piece
-            // indices
-            if (interestingPieces != 0) {
-                for (int j = 0; j < 8; j++) {
-                    if ((interestingPieces & (1 << (7 - j))) != 0) {
-                        int pieceIndex = i * 8 + j;
-                        missingPieces.add(pieceIndex);
-                    }
-                }
-            }
+    private int countPieces() {
+        int count = 0;
+        for (long word : words) {
+            count += Long.bitCount(word);
         }
-
-        return missingPieces;
+        return count;
     }
-}
\ No newline at end of file
+}
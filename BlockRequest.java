@@ -0,0 +1,48 @@
+/**
+ * The BlockRequest class identifies a block of a piece: the piece index, the
+ * offset of the block within the piece and its length. Two requests are equal
+ * if they name the same piece and offset.
+ */
+public class BlockRequest {
+
+    private final int pieceIndex;
+    private final int offset;
+    private final int length;
+
+    public BlockRequest(int pieceIndex, int offset, int length) {
+        this.pieceIndex = pieceIndex;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public int getPieceIndex() {
+        return pieceIndex;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof BlockRequest)) {
+            return false;
+        }
+        BlockRequest block = (BlockRequest) other;
+        return pieceIndex == block.pieceIndex && offset == block.offset;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * pieceIndex + offset;
+    }
+
+    @Override
+    public String toString() {
+        return "BlockRequest [pieceIndex=" + pieceIndex + ", offset=" + offset + ", length=" + length + "]";
+    }
+}
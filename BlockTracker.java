@@ -0,0 +1,306 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The BlockTracker class splits pieces into fixed size blocks and tracks, for
+ * every piece being downloaded, which blocks have been requested and which
+ * have been written to the file. Blocks of one piece can be requested from
+ * different peers, and a piece is complete only once all of its blocks are
+ * written and its content has been verified. The peers that sent blocks of a
+ * piece are remembered until then, so a piece that fails verification can be
+ * requested from other peers.
+ *
+ * In endgame mode a block may be requested from several peers at once. The
+ * first copy to arrive claims the block before it is written, and later
+ * copies are dropped, so a block is never written twice.
+ */
+public class BlockTracker {
+
+    private final FileManager fileManager;
+
+    private final int blockSize;
+
+    // Download progress of every started and not yet completed piece
+    private final Map<Integer, PieceProgress> startedPieces;
+
+    private static class PieceProgress {
+        final BitSet requested = new BitSet();
+
+        // Number of connections each requested block is outstanding on, more
+        // than one for blocks requested again in endgame mode
+        final int[] holders;
+        final BitSet received = new BitSet();
+
+        // Blocks whose first copy arrived and is being or has been written
+        final BitSet claimed = new BitSet();
+
+        // Peers that sent blocks since the piece was last started
+        final Set<String> senders = new HashSet<>();
+
+        // Peers that sent blocks of a copy of the piece that failed
+        // verification
+        final Set<String> failedSenders = new HashSet<>();
+
+        PieceProgress(int numBlocks) {
+            this.holders = new int[numBlocks];
+        }
+    }
+
+    public BlockTracker(FileManager fileManager, int blockSize) {
+        this.fileManager = fileManager;
+        this.blockSize = blockSize;
+        this.startedPieces = new HashMap<>();
+    }
+
+    /**
+     * Returns the number of blocks a piece is split into.
+     *
+     * @param pieceIndex The index of the piece.
+     * @return The number of blocks.
+     */
+    public int getNumBlocks(int pieceIndex) {
+        return (fileManager.getPieceLength(pieceIndex) + blockSize - 1) / blockSize;
+    }
+
+    /**
+     * Returns the length of the block at the given offset. Every block has the
+     * configured block size, except the last block of a piece which holds the
+     * rest of the piece.
+     *
+     * @param pieceIndex The index of the piece.
+     * @param offset     The offset of the block within the piece.
+     * @return The block length in bytes.
+     */
+    public int getBlockLength(int pieceIndex, int offset) {
+        return Math.min(blockSize, fileManager.getPieceLength(pieceIndex) - offset);
+    }
+
+    /**
+     * Returns true if a block of the piece has been requested and the piece is
+     * not complete yet.
+     *
+     * @param pieceIndex The index of the piece.
+     */
+    public synchronized boolean isStarted(int pieceIndex) {
+        return startedPieces.containsKey(pieceIndex);
+    }
+
+    /**
+     * Returns the started pieces that still have blocks nobody has requested.
+     */
+    public synchronized List<Integer> getPiecesWithUnrequestedBlocks() {
+        List<Integer> pieces = new ArrayList<>();
+        for (Map.Entry<Integer, PieceProgress> entry : startedPieces.entrySet()) {
+            if (entry.getValue().requested.cardinality() < getNumBlocks(entry.getKey())) {
+                pieces.add(entry.getKey());
+            }
+        }
+        return pieces;
+    }
+
+    /**
+     * Returns true if every block of every missing piece has been requested:
+     * every missing piece is started, and no started piece has a block left
+     * that nobody has requested.
+     *
+     * @param missingPieces The number of pieces this peer does not have yet.
+     */
+    public synchronized boolean allBlocksRequested(int missingPieces) {
+        if (startedPieces.size() < missingPieces) {
+            return false;
+        }
+        for (Map.Entry<Integer, PieceProgress> entry : startedPieces.entrySet()) {
+            if (entry.getValue().requested.cardinality() < getNumBlocks(entry.getKey())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Marks the first block of the piece that has not been requested yet as
+     * requested, starting the piece if needed.
+     *
+     * @param pieceIndex The index of the piece.
+     * @return The block to request, or null if every block of the piece has
+     *         been requested.
+     */
+    public synchronized BlockRequest requestNextBlock(int pieceIndex) {
+        PieceProgress progress = startedPieces.computeIfAbsent(pieceIndex,
+                piece -> new PieceProgress(getNumBlocks(piece)));
+
+        int block = progress.requested.nextClearBit(0);
+        if (block >= getNumBlocks(pieceIndex)) {
+            return null;
+        }
+        progress.requested.set(block);
+        progress.holders[block] = 1;
+
+        int offset = block * blockSize;
+        return new BlockRequest(pieceIndex, offset, getBlockLength(pieceIndex, offset));
+    }
+
+    /**
+     * Records another connection a requested block is requested over, in
+     * endgame mode.
+     *
+     * @param block The block.
+     */
+    public synchronized void requestDuplicate(BlockRequest block) {
+        PieceProgress progress = startedPieces.get(block.getPieceIndex());
+        if (progress != null) {
+            progress.holders[block.getOffset() / blockSize]++;
+        }
+    }
+
+    /**
+     * Releases the request of a block over one connection. Once no
+     * connection has it outstanding, the block is marked as not requested
+     * again, so it is requested from another connection. A block that is
+     * still requested over another connection, or that has been claimed by
+     * a copy from another connection, stays requested.
+     *
+     * @param block The block whose request was lost.
+     */
+    public synchronized void releaseBlock(BlockRequest block) {
+        PieceProgress progress = startedPieces.get(block.getPieceIndex());
+        if (progress == null) {
+            return;
+        }
+        int index = block.getOffset() / blockSize;
+        if (progress.holders[index] > 0) {
+            progress.holders[index]--;
+        }
+        if (progress.holders[index] == 0 && !progress.claimed.get(index)) {
+            progress.requested.clear(index);
+        }
+    }
+
+    /**
+     * Claims a block whose copy arrived, before it is written.
+     *
+     * @param block The received block.
+     * @return false if another copy of the block claimed it first, or its
+     *         piece is not being downloaded anymore; the copy is dropped.
+     */
+    public synchronized boolean claimBlock(BlockRequest block) {
+        PieceProgress progress = startedPieces.get(block.getPieceIndex());
+        int index = block.getOffset() / blockSize;
+        if (progress == null || progress.claimed.get(index)) {
+            return false;
+        }
+        progress.claimed.set(index);
+        return true;
+    }
+
+    /**
+     * Releases a claimed block whose copy could not be written, so it is
+     * requested again.
+     *
+     * @param block The block.
+     */
+    public synchronized void unclaimBlock(BlockRequest block) {
+        PieceProgress progress = startedPieces.get(block.getPieceIndex());
+        if (progress != null) {
+            int index = block.getOffset() / blockSize;
+            progress.claimed.clear(index);
+            progress.requested.clear(index);
+            progress.holders[index] = 0;
+        }
+    }
+
+    /**
+     * Returns the blocks that have been requested and not arrived yet, the
+     * blocks endgame mode requests from more peers.
+     */
+    public synchronized List<BlockRequest> getOutstandingBlocks() {
+        List<BlockRequest> blocks = new ArrayList<>();
+        for (Map.Entry<Integer, PieceProgress> entry : startedPieces.entrySet()) {
+            int pieceIndex = entry.getKey();
+            PieceProgress progress = entry.getValue();
+            for (int index = progress.requested.nextSetBit(0); index >= 0; index = progress.requested
+                    .nextSetBit(index + 1)) {
+                if (!progress.claimed.get(index)) {
+                    int offset = index * blockSize;
+                    blocks.add(new BlockRequest(pieceIndex, offset, getBlockLength(pieceIndex, offset)));
+                }
+            }
+        }
+        return blocks;
+    }
+
+    /**
+     * Records a block that has been written to the file. A piece whose blocks
+     * have all been received stays started until it is verified.
+     *
+     * @param block    The written block.
+     * @param senderID The ID of the peer that sent the block.
+     * @return true if this was the last missing block of its piece.
+     */
+    public synchronized boolean blockReceived(BlockRequest block, String senderID) {
+        PieceProgress progress = startedPieces.get(block.getPieceIndex());
+        int index = block.getOffset() / blockSize;
+        if (progress == null || progress.received.get(index)) {
+            return false;
+        }
+        progress.received.set(index);
+        progress.senders.add(senderID);
+
+        return progress.received.cardinality() == getNumBlocks(block.getPieceIndex());
+    }
+
+    /**
+     * Completes a piece whose content matched its hash.
+     *
+     * @param pieceIndex The index of the piece.
+     */
+    public synchronized void pieceVerified(int pieceIndex) {
+        startedPieces.remove(pieceIndex);
+    }
+
+    /**
+     * Starts a piece whose content did not match its hash over again. Its
+     * blocks are requested again, preferably from other peers than the ones
+     * that sent them.
+     *
+     * @param pieceIndex The index of the piece.
+     * @return The IDs of the peers that sent blocks of the piece.
+     */
+    public synchronized Set<String> pieceFailed(int pieceIndex) {
+        PieceProgress progress = startedPieces.get(pieceIndex);
+        if (progress == null) {
+            return Set.of();
+        }
+        progress.requested.clear();
+        progress.received.clear();
+        progress.claimed.clear();
+        Arrays.fill(progress.holders, 0);
+        progress.failedSenders.addAll(progress.senders);
+
+        Set<String> senders = new HashSet<>(progress.senders);
+        progress.senders.clear();
+        return senders;
+    }
+
+    /**
+     * Returns true if the peer sent blocks of a copy of the piece that failed
+     * verification.
+     *
+     * @param pieceIndex The index of the piece.
+     * @param peerID     The ID of the peer.
+     */
+    public synchronized boolean hasFailed(int pieceIndex, String peerID) {
+        PieceProgress progress = startedPieces.get(pieceIndex);
+        return progress != null && progress.failedSenders.contains(peerID);
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+}
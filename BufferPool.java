@@ -0,0 +1,109 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * The BufferPool class hands out direct buffers of one fixed size, large
+ * enough for a piece message carrying a full block. Buffers are acquired when
+ * a connection opens and released when it closes, and released buffers are
+ * reused, so the direct memory used for I/O is allocated once and stays
+ * bounded. When every buffer is in use, acquire returns a heap buffer instead
+ * and counts the pool as exhausted; heap buffers are never pooled.
+ */
+public class BufferPool {
+
+    // Size of every pooled buffer in bytes
+    private final int bufferSize;
+
+    // Maximum number of direct buffers the pool allocates
+    private final int maxBuffers;
+
+    // Released buffers waiting to be reused
+    private final Deque<ByteBuffer> freeBuffers;
+
+    // Number of direct buffers allocated so far
+    private int allocated;
+
+    // Metrics
+    private int inUse;
+    private int peakInUse;
+    private long acquired;
+    private long exhausted;
+
+    public BufferPool(int bufferSize, int maxBuffers) {
+        this.bufferSize = bufferSize;
+        this.maxBuffers = maxBuffers;
+        this.freeBuffers = new ArrayDeque<>();
+    }
+
+    /**
+     * Returns a cleared buffer of the pool's buffer size, direct unless the
+     * pool is exhausted.
+     *
+     * @return The buffer, to be given back with release.
+     */
+    public synchronized ByteBuffer acquire() {
+        acquired++;
+
+        ByteBuffer buffer = freeBuffers.poll();
+        if (buffer == null) {
+            if (allocated >= maxBuffers) {
+                exhausted++;
+                return ByteBuffer.allocate(bufferSize);
+            }
+            allocated++;
+            buffer = ByteBuffer.allocateDirect(bufferSize);
+        }
+
+        inUse++;
+        peakInUse = Math.max(peakInUse, inUse);
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Gives a buffer back to the pool. Buffers that did not come from the pool
+     * are left to the garbage collector. The caller must not use the buffer
+     * afterwards.
+     *
+     * @param buffer The buffer to release, may be null.
+     */
+    public synchronized void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect() || buffer.capacity() != bufferSize) {
+            return;
+        }
+        inUse--;
+        freeBuffers.push(buffer);
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public synchronized int getInUse() {
+        return inUse;
+    }
+
+    public synchronized int getPeakInUse() {
+        return peakInUse;
+    }
+
+    public synchronized long getAcquired() {
+        return acquired;
+    }
+
+    /**
+     * Returns how often a buffer was requested while all pooled buffers were
+     * in use, and a heap buffer was handed out instead.
+     */
+    public synchronized long getExhausted() {
+        return exhausted;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BufferPool [bufferSize=" + bufferSize + ", maxBuffers=" + maxBuffers + ", allocated=" + allocated
+                + ", inUse=" + inUse + ", peakInUse=" + peakInUse + ", acquired=" + acquired
+                + ", exhausted=" + exhausted + "]";
+    }
+}
@@ -1,5 +1,8 @@
 import java.io.BufferedReader;
 import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * The CommonConfigParser class is responsible for parsing a common configuration file
@@ -12,9 +15,35 @@ public class CommonConfigParser {
     int unchokingInterval;
     int optimisticUnchokingInterval;
     String fileName;
-    int fileSize;
+    long fileSize;
     int pieceSize;
 
+    // Optional parameters, defaults apply when absent from the file
+    ConnectionMode connectionMode = ConnectionMode.SELECTOR;
+    int requestPipelineDepth = 10;
+    int blockSize = 16 * 1024;
+    int bufferPoolSize = 64;
+    int connectTimeout = 3000;
+    int handshakeTimeout = 5000;
+    StorageMode storageMode = StorageMode.FILE;
+    FlushPolicy flushPolicy = FlushPolicy.BATCH;
+    int diskIOThreads = 2;
+    int diskQueueSize = 32;
+    Preallocation preallocation = Preallocation.SPARSE;
+    int flushBatchPieces = 16;
+    int flushInterval = 1000;
+    int verifyThreads = Runtime.getRuntime().availableProcessors();
+    boolean resumeVerify = true;
+    long pieceCacheSize = 64L * 1024 * 1024;
+    long seedMemoryLimit = 0;
+    int requestTimeout = 10000;
+    PieceSelection pieceSelection = PieceSelection.RAREST;
+    int streamingWindow = 16;
+    String streamOutput = "";
+
+    // Lines whose values could not be parsed, with the reason
+    private final List<String> invalidSettings = new ArrayList<>();
+
     /**
      * Constructor that initializes the CommonConfigParser by parsing the provided common configuration file.
      *
@@ -33,39 +62,117 @@ public class CommonConfigParser {
         try {
             try (BufferedReader br = new BufferedReader(new FileReader(commonConfigFileName))) {
                 String line;
-                int lineNumber = 0;
                 while ((line = br.readLine()) != null) {
-                    lineNumber += 1;
-                    String[] parts = line.split("\\s+");
-
-                    // Update configuration parameters based on line number
-                    switch (lineNumber) {
-                        case 1:
-                            numberOfPreferredNeighbors = Integer.parseInt(parts[1]);
-                            break;
-                        case 2:
-                            unchokingInterval = Integer.parseInt(parts[1]);
-                            break;
-                        case 3:
-                            optimisticUnchokingInterval = Integer.parseInt(parts[1]);
-                            break;
-                        case 4:
-                            fileName = parts[1];
-                            break;
-                        case 5:
-                            fileSize = Integer.parseInt(parts[1]);
-                            break;
-                        case 6:
-                            pieceSize = Integer.parseInt(parts[1]);
-                            break;
+                    String[] parts = line.trim().split("\\s+");
+                    if (parts.length < 2) {
+                        continue;
+                    }
+
+                    // Update configuration parameters based on the parameter name.
+                    // A value that does not parse leaves its parameter at the
+                    // default and is reported, the other lines still apply
+                    try {
+                        switch (parts[0]) {
+                            case "NumberOfPreferredNeighbors":
+                                numberOfPreferredNeighbors = Integer.parseInt(parts[1]);
+                                break;
+                            case "UnchokingInterval":
+                                unchokingInterval = Integer.parseInt(parts[1]);
+                                break;
+                            case "OptimisticUnchokingInterval":
+                                optimisticUnchokingInterval = Integer.parseInt(parts[1]);
+                                break;
+                            case "FileName":
+                                fileName = parts[1];
+                                break;
+                            case "FileSize":
+                                fileSize = Long.parseLong(parts[1]);
+                                break;
+                            case "PieceSize":
+                                pieceSize = Integer.parseInt(parts[1]);
+                                break;
+                            case "ConnectionMode":
+                                connectionMode = ConnectionMode.parse(parts[1]);
+                                break;
+                            case "RequestPipelineDepth":
+                                requestPipelineDepth = Integer.parseInt(parts[1]);
+                                break;
+                            case "BlockSize":
+                                blockSize = Integer.parseInt(parts[1]);
+                                break;
+                            case "BufferPoolSize":
+                                bufferPoolSize = Integer.parseInt(parts[1]);
+                                break;
+                            case "ConnectTimeout":
+                                connectTimeout = Integer.parseInt(parts[1]);
+                                break;
+                            case "HandshakeTimeout":
+                                handshakeTimeout = Integer.parseInt(parts[1]);
+                                break;
+                            case "StorageMode":
+                                storageMode = StorageMode.parse(parts[1]);
+                                break;
+                            case "FlushPolicy":
+                                flushPolicy = FlushPolicy.parse(parts[1]);
+                                break;
+                            case "DiskIOThreads":
+                                diskIOThreads = Integer.parseInt(parts[1]);
+                                break;
+                            case "DiskQueueSize":
+                                diskQueueSize = Integer.parseInt(parts[1]);
+                                break;
+                            case "Preallocation":
+                                preallocation = Preallocation.parse(parts[1]);
+                                break;
+                            case "FlushBatchPieces":
+                                flushBatchPieces = Integer.parseInt(parts[1]);
+                                break;
+                            case "FlushInterval":
+                                flushInterval = Integer.parseInt(parts[1]);
+                                break;
+                            case "VerifyThreads":
+                                verifyThreads = Integer.parseInt(parts[1]);
+                                break;
+                            case "ResumeVerify":
+                                resumeVerify = Boolean.parseBoolean(parts[1]);
+                                break;
+                            case "PieceCacheSize":
+                                pieceCacheSize = Long.parseLong(parts[1]);
+                                break;
+                            case "SeedMemoryLimit":
+                                seedMemoryLimit = Long.parseLong(parts[1]);
+                                break;
+                            case "RequestTimeout":
+                                requestTimeout = Integer.parseInt(parts[1]);
+                                break;
+                            case "PieceSelection":
+                                pieceSelection = PieceSelection.parse(parts[1]);
+                                break;
+                            case "StreamingWindow":
+                                streamingWindow = Integer.parseInt(parts[1]);
+                                break;
+                            case "StreamOutput":
+                                streamOutput = parts[1];
+                                break;
+                        }
+                    } catch (IllegalArgumentException e) {
+                        invalidSettings.add("\"" + line.trim() + "\" (" + e.getMessage() + ")");
                     }
                 }
             }
-        } catch (Exception e) {
+        } catch (IOException e) {
             // System.out.println("Exception: " + e);
         }
     }
 
+    /**
+     * Returns the lines of the file whose values could not be parsed, with
+     * the reason, so they can be reported once the peer has a logger.
+     */
+    public List<String> getInvalidSettings() {
+        return invalidSettings;
+    }
+
     /**
      * Returns a string representation of the CommonConfigParser object.
      *
@@ -91,6 +198,69 @@ public class CommonConfigParser {
                 .append("\n")
                 .append("pieceSize: ")
                 .append(pieceSize)
+                .append("\n")
+                .append("connectionMode: ")
+                .append(connectionMode)
+                .append("\n")
+                .append("requestPipelineDepth: ")
+                .append(requestPipelineDepth)
+                .append("\n")
+                .append("blockSize: ")
+                .append(blockSize)
+                .append("\n")
+                .append("bufferPoolSize: ")
+                .append(bufferPoolSize)
+                .append("\n")
+                .append("connectTimeout: ")
+                .append(connectTimeout)
+                .append("\n")
+                .append("handshakeTimeout: ")
+                .append(handshakeTimeout)
+                .append("\n")
+                .append("storageMode: ")
+                .append(storageMode)
+                .append("\n")
+                .append("flushPolicy: ")
+                .append(flushPolicy)
+                .append("\n")
+                .append("diskIOThreads: ")
+                .append(diskIOThreads)
+                .append("\n")
+                .append("diskQueueSize: ")
+                .append(diskQueueSize)
+                .append("\n")
+                .append("preallocation: ")
+                .append(preallocation)
+                .append("\n")
+                .append("flushBatchPieces: ")
+                .append(flushBatchPieces)
+                .append("\n")
+                .append("flushInterval: ")
+                .append(flushInterval)
+                .append("\n")
+                .append("verifyThreads: ")
+                .append(verifyThreads)
+                .append("\n")
+                .append("resumeVerify: ")
+                .append(resumeVerify)
+                .append("\n")
+                .append("pieceCacheSize: ")
+                .append(pieceCacheSize)
+                .append("\n")
+                .append("seedMemoryLimit: ")
+                .append(seedMemoryLimit)
+                .append("\n")
+                .append("requestTimeout: ")
+                .append(requestTimeout)
+                .append("\n")
+                .append("pieceSelection: ")
+                .append(pieceSelection)
+                .append("\n")
+                .append("streamingWindow: ")
+                .append(streamingWindow)
+                .append("\n")
+                .append("streamOutput: ")
+                .append(streamOutput)
                 .append("\n");
 
         return result.toString();
@@ -130,11 +300,11 @@ public class CommonConfigParser {
         this.fileName = fileName;
     }
 
-    public int getFileSize() {
+    public long getFileSize() {
         return fileSize;
     }
 
-    public void setFileSize(int fileSize) {
+    public void setFileSize(long fileSize) {
         this.fileSize = fileSize;
     }
 
@@ -146,6 +316,174 @@ public class CommonConfigParser {
         this.pieceSize = pieceSize;
     }
 
+    public ConnectionMode getConnectionMode() {
+        return connectionMode;
+    }
+
+    public void setConnectionMode(ConnectionMode connectionMode) {
+        this.connectionMode = connectionMode;
+    }
+
+    public int getRequestPipelineDepth() {
+        return requestPipelineDepth;
+    }
+
+    public void setRequestPipelineDepth(int requestPipelineDepth) {
+        this.requestPipelineDepth = requestPipelineDepth;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public void setBlockSize(int blockSize) {
+        this.blockSize = blockSize;
+    }
+
+    public int getBufferPoolSize() {
+        return bufferPoolSize;
+    }
+
+    public void setBufferPoolSize(int bufferPoolSize) {
+        this.bufferPoolSize = bufferPoolSize;
+    }
+
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public int getHandshakeTimeout() {
+        return handshakeTimeout;
+    }
+
+    public void setHandshakeTimeout(int handshakeTimeout) {
+        this.handshakeTimeout = handshakeTimeout;
+    }
+
+    public StorageMode getStorageMode() {
+        return storageMode;
+    }
+
+    public void setStorageMode(StorageMode storageMode) {
+        this.storageMode = storageMode;
+    }
+
+    public FlushPolicy getFlushPolicy() {
+        return flushPolicy;
+    }
+
+    public void setFlushPolicy(FlushPolicy flushPolicy) {
+        this.flushPolicy = flushPolicy;
+    }
+
+    public int getDiskIOThreads() {
+        return diskIOThreads;
+    }
+
+    public void setDiskIOThreads(int diskIOThreads) {
+        this.diskIOThreads = diskIOThreads;
+    }
+
+    public int getDiskQueueSize() {
+        return diskQueueSize;
+    }
+
+    public void setDiskQueueSize(int diskQueueSize) {
+        this.diskQueueSize = diskQueueSize;
+    }
+
+    public Preallocation getPreallocation() {
+        return preallocation;
+    }
+
+    public void setPreallocation(Preallocation preallocation) {
+        this.preallocation = preallocation;
+    }
+
+    public int getFlushBatchPieces() {
+        return flushBatchPieces;
+    }
+
+    public void setFlushBatchPieces(int flushBatchPieces) {
+        this.flushBatchPieces = flushBatchPieces;
+    }
+
+    public int getFlushInterval() {
+        return flushInterval;
+    }
+
+    public void setFlushInterval(int flushInterval) {
+        this.flushInterval = flushInterval;
+    }
+
+    public int getVerifyThreads() {
+        return verifyThreads;
+    }
+
+    public void setVerifyThreads(int verifyThreads) {
+        this.verifyThreads = verifyThreads;
+    }
+
+    public boolean isResumeVerify() {
+        return resumeVerify;
+    }
+
+    public void setResumeVerify(boolean resumeVerify) {
+        this.resumeVerify = resumeVerify;
+    }
+
+    public long getPieceCacheSize() {
+        return pieceCacheSize;
+    }
+
+    public void setPieceCacheSize(long pieceCacheSize) {
+        this.pieceCacheSize = pieceCacheSize;
+    }
+
+    public long getSeedMemoryLimit() {
+        return seedMemoryLimit;
+    }
+
+    public void setSeedMemoryLimit(long seedMemoryLimit) {
+        this.seedMemoryLimit = seedMemoryLimit;
+    }
+
+    public int getRequestTimeout() {
+        return requestTimeout;
+    }
+
+    public void setRequestTimeout(int requestTimeout) {
+        this.requestTimeout = requestTimeout;
+    }
+
+    public PieceSelection getPieceSelection() {
+        return pieceSelection;
+    }
+
+    public void setPieceSelection(PieceSelection pieceSelection) {
+        this.pieceSelection = pieceSelection;
+    }
+
+    public int getStreamingWindow() {
+        return streamingWindow;
+    }
+
+    public void setStreamingWindow(int streamingWindow) {
+        this.streamingWindow = streamingWindow;
+    }
+
+    public String getStreamOutput() {
+        return streamOutput;
+    }
+
+    public void setStreamOutput(String streamOutput) {
+        this.streamOutput = streamOutput;
+    }
+
     /**
      * The main method for independent class testing.
      *
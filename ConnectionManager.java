@@ -0,0 +1,162 @@
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The ConnectionManager class establishes the connections this peer dials: one
+ * to every peer listed before it in the peer configuration. All peers are
+ * dialed at once, connecting and handshaking are bounded by timeouts, and a
+ * dial that fails or a connection that drops before every peer has the
+ * complete file is retried with exponential backoff, so peers that start later
+ * are still reached. Handshake timeouts also apply to accepted connections.
+ */
+public class ConnectionManager {
+
+    // Delay before the first retry of a peer, doubled after every failure
+    private static final long INITIAL_RETRY_DELAY_MILLIS = 250;
+
+    // Upper bound of the retry delay
+    private static final long MAX_RETRY_DELAY_MILLIS = 8000;
+
+    final PeerProtocol protocol;
+
+    // Engine running the connections, null if they use blocking I/O
+    final NetworkEngine networkEngine;
+
+    // Creates the threads of connections using blocking I/O
+    final ThreadFactory threadFactory;
+
+    final int connectTimeoutMillis;
+    final int handshakeTimeoutMillis;
+
+    // Runs the retries and timeout checks
+    private final ScheduledExecutorService timer;
+
+    // Dialed peers by peer ID
+    private final Map<String, Peer> peers;
+
+    // Delay before the next retry of each peer that failed since its last
+    // completed handshake
+    private final Map<String, Long> retryDelays;
+
+    public ConnectionManager(PeerProtocol protocol, NetworkEngine networkEngine, ThreadFactory threadFactory,
+            int connectTimeoutMillis, int handshakeTimeoutMillis) {
+        this.protocol = protocol;
+        this.networkEngine = networkEngine;
+        this.threadFactory = threadFactory;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.handshakeTimeoutMillis = handshakeTimeoutMillis;
+        this.timer = Executors.newSingleThreadScheduledExecutor(threadFactory);
+        this.peers = new ConcurrentHashMap<>();
+        this.retryDelays = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Dials every given peer without waiting for the others.
+     *
+     * @param peersToDial The peers to connect to.
+     */
+    public void connectAll(List<Peer> peersToDial) {
+        for (Peer peer : peersToDial) {
+            peers.put(peer.getPeerId(), peer);
+            dial(peer);
+        }
+    }
+
+    private void dial(Peer peer) {
+        if (protocol.allPeersDownloadCompleted()) {
+            return;
+        }
+        // Handshake and bitfield exchange continue on the connection's thread
+        // or the network engine
+        if (networkEngine != null) {
+            networkEngine.connect(peer);
+        } else {
+            Thread senderTask = threadFactory.newThread(
+                    new SenderThread(peer, protocol, threadFactory, connectTimeoutMillis));
+            senderTask.start();
+        }
+    }
+
+    /**
+     * Called when a non-blocking connection attempt has started. Drops it if
+     * it is not connected within the connect timeout.
+     *
+     * @param connection The connection being established.
+     */
+    void onDialing(PeerConnection connection) {
+        schedule(connectTimeoutMillis, () -> {
+            if (!connection.channel.isConnected()) {
+                connection.disconnect();
+            }
+        });
+    }
+
+    /**
+     * Called when a connection has been established, by either side. Drops it
+     * if the handshake does not complete within the handshake timeout.
+     *
+     * @param connection The established connection.
+     */
+    void onEstablished(PeerConnection connection) {
+        schedule(handshakeTimeoutMillis, () -> {
+            if (!connection.isHandshakeCompleted()) {
+                connection.disconnect();
+            }
+        });
+    }
+
+    /**
+     * Called when the handshake of a connection completed. The next failure
+     * of the peer is retried quickly again.
+     *
+     * @param connection The connection.
+     */
+    void onHandshakeCompleted(PeerConnection connection) {
+        if (connection.isInitiator()) {
+            retryDelays.remove(connection.getRemotePeerID());
+        }
+    }
+
+    /**
+     * Called when a connection is closed, or a dial failed. Connections this
+     * peer dialed are dialed again after the peer's backoff delay, unless
+     * every peer has the complete file.
+     *
+     * @param connection The closed connection.
+     */
+    void onDisconnected(PeerConnection connection) {
+        if (!connection.isInitiator() || protocol.allPeersDownloadCompleted()) {
+            return;
+        }
+        Peer peer = peers.get(connection.getRemotePeerID());
+        if (peer == null) {
+            return;
+        }
+
+        long delay = retryDelays.getOrDefault(peer.getPeerId(), INITIAL_RETRY_DELAY_MILLIS);
+        retryDelays.put(peer.getPeerId(), Math.min(delay * 2, MAX_RETRY_DELAY_MILLIS));
+
+        schedule(delay, () -> dial(peer));
+    }
+
+    private void schedule(long delayMillis, Runnable task) {
+        try {
+            timer.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Shut down, no more retries
+        }
+    }
+
+    /**
+     * Stops all pending retries and timeout checks.
+     */
+    public void shutdown() {
+        timer.shutdownNow();
+    }
+}
@@ -0,0 +1,65 @@
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The ConnectionMode enum lists the ways a peer can run its connections,
+ * selected at startup with the ConnectionMode setting in Common.cfg.
+ */
+public enum ConnectionMode {
+
+    // One selector thread drives every connection with non-blocking I/O
+    SELECTOR,
+
+    // One platform thread per connection with blocking reads
+    THREAD,
+
+    // One virtual thread per connection with blocking reads
+    VIRTUAL;
+
+    /**
+     * Parses a ConnectionMode setting, ignoring case.
+     *
+     * @param value The configured value, e.g. "selector" or "virtual".
+     * @return The matching mode.
+     */
+    public static ConnectionMode parse(String value) {
+        return ConnectionMode.valueOf(value.toUpperCase());
+    }
+
+    /**
+     * Returns the factory for the threads that run connections and scheduled
+     * tasks in this mode. Virtual threads need Java 21; on older runtimes the
+     * VIRTUAL mode falls back to platform threads.
+     *
+     * @return The thread factory for this mode.
+     */
+    public ThreadFactory threadFactory() {
+        if (this == VIRTUAL) {
+            ThreadFactory virtualThreadFactory = virtualThreadFactory();
+            if (virtualThreadFactory != null) {
+                return virtualThreadFactory;
+            }
+        }
+        return Executors.defaultThreadFactory();
+    }
+
+    /**
+     * Returns false if this mode falls back to another on this runtime: the
+     * VIRTUAL mode before Java 21.
+     */
+    public boolean isAvailable() {
+        return this != VIRTUAL || virtualThreadFactory() != null;
+    }
+
+    // Looked up reflectively so the code still compiles and runs before Java 21
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder")
+                    .getMethod("factory")
+                    .invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
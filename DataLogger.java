@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 
@@ -59,6 +60,36 @@ public class DataLogger {
         }
     }
 
+    /**
+     * Log a setting of Common.cfg whose value could not be parsed, and which
+     * keeps its default.
+     *
+     * @param setting The line of the setting, with the reason it was
+     *                rejected.
+     */
+    public void logInvalidSetting(String setting) {
+        log("Peer " + peerID + " ignored the invalid setting " + setting + " and uses its default.");
+    }
+
+    /**
+     * Log that virtual threads are not available on this runtime, so the
+     * connections run on platform threads.
+     */
+    public void logVirtualThreadsUnavailable() {
+        log("Peer " + peerID + " runs its connections on platform threads, virtual threads are not available.");
+    }
+
+    /**
+     * Log that the complete file is too large to be loaded into memory, so
+     * it is served from disk.
+     *
+     * @param seedMemoryLimit The configured SeedMemoryLimit in bytes.
+     */
+    public void logSeedingFromDisk(long seedMemoryLimit) {
+        log("Peer " + peerID + " seeds from disk, the file exceeds the SeedMemoryLimit of " + seedMemoryLimit
+                + " bytes.");
+    }
+
     /**
      * Log a TCP connection event.
      *
@@ -164,6 +195,17 @@ public class DataLogger {
                 ". Now the number of pieces it has is " + numberOfPieces + ".");
     }
 
+    /**
+     * Log a downloaded piece that did not match its hash.
+     *
+     * @param pieceIndex The piece index downloaded.
+     * @param senders    The IDs of the peers that sent blocks of the piece.
+     */
+    public void logCorruptPiece(int pieceIndex, Collection<String> senders) {
+        log("Peer " + peerID + " received a corrupt copy of the piece " + pieceIndex + " from "
+                + String.join(", ", senders) + ".");
+    }
+
     /**
      * Log the completion of downloading the complete file.
      */
@@ -0,0 +1,168 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+
+/**
+ * The DiskIOStage class writes received blocks to the file on a small pool of
+ * worker threads, so the threads reading from the network are not held up by
+ * a busy disk. A block is copied out of the connection's read buffer into a
+ * pooled buffer and queued; a worker writes it and then reports the number of
+ * bytes written. The queue is bounded: when it is full the block is written
+ * by the submitting thread itself, which slows down reading from the network
+ * instead of buffering without limit.
+ *
+ * Requested blocks are loaded into memory on the workers too, before their
+ * piece message is queued on the connection, so the thread writing to the
+ * socket does not wait for the disk. With the piece cache the worker reads
+ * the whole piece into the cache and the block is sent from there; with a
+ * mapping it loads the pages of the block, which are then sent from the
+ * mapping. Either way the block is read from the disk once. A block
+ * cancelled while it is loaded is not sent. When the queue is full the
+ * piece message is queued without loading the block first, since running
+ * the load on the submitting thread is what the stage avoids.
+ */
+public class DiskIOStage {
+
+    private final FileManager fileManager;
+
+    // Buffers holding the queued blocks to be written
+    private final BufferPool bufferPool;
+
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * @param fileManager The file the blocks are written to and read from.
+     * @param bufferPool  The pool the block buffers are taken from.
+     * @param threads     The number of worker threads.
+     * @param queueSize   The maximum number of jobs waiting for a worker.
+     */
+    public DiskIOStage(FileManager fileManager, BufferPool bufferPool, int threads, int queueSize) {
+        this.fileManager = fileManager;
+        this.bufferPool = bufferPool;
+
+        // Platform threads, since file I/O blocks the thread it runs on
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, "disk-io");
+            thread.setDaemon(true);
+            return thread;
+        };
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), threadFactory, (job, executor) -> reject(job));
+    }
+
+    /**
+     * Handles a job the queue has no room for. A write runs on the submitting
+     * thread, a read sends its block without loading it first.
+     */
+    private void reject(Runnable job) {
+        if (job instanceof BlockRead) {
+            ((BlockRead) job).send(false);
+        } else {
+            job.run();
+        }
+    }
+
+    /**
+     * Queues a block to be written to the file.
+     *
+     * @param block     The block.
+     * @param content   The block content, from its position to its limit. It
+     *                  is copied before the call returns.
+     * @param onWritten Called on the worker thread once the write finished,
+     *                  with the number of bytes written.
+     */
+    public void write(BlockRequest block, ByteBuffer content, IntConsumer onWritten) {
+        ByteBuffer buffer = bufferPool.acquire();
+        buffer.put(content);
+        buffer.flip();
+
+        executor.execute(() -> {
+            int written = fileManager.saveBlock(buffer, block.getPieceIndex(), block.getOffset());
+            bufferPool.release(buffer);
+            onWritten.accept(written);
+        });
+    }
+
+    /**
+     * Queues a requested block to be loaded into memory, then sent to the
+     * peer that requested it. Only useful with the piece cache or a mapping.
+     *
+     * @param connection The connection the block was requested over.
+     * @param block      The block, of a complete piece.
+     */
+    public void read(PeerConnection connection, BlockRequest block) {
+        connection.startRead(block);
+        executor.execute(new BlockRead(connection, block));
+    }
+
+    /**
+     * Waits for the queued writes to finish and stops the workers. Blocks
+     * written afterwards are written by the submitting thread.
+     */
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // A job loading a requested block and queueing its piece message
+    private class BlockRead implements Runnable {
+
+        private final PeerConnection connection;
+        private final BlockRequest block;
+
+        BlockRead(PeerConnection connection, BlockRequest block) {
+            this.connection = connection;
+            this.block = block;
+        }
+
+        @Override
+        public void run() {
+            send(true);
+        }
+
+        /**
+         * Queues the piece message, from the piece cache if the piece is
+         * cached and otherwise from the mapping or the file, unless the
+         * block was cancelled.
+         *
+         * @param load Whether to load the block into memory first.
+         */
+        void send(boolean load) {
+            int piece = block.getPieceIndex();
+            int offset = block.getOffset();
+            int length = block.getLength();
+
+            PieceCache pieceCache = fileManager.getPieceCache();
+            ByteBuffer content = null;
+            if (pieceCache != null) {
+                if (load && pieceCache.startLoad(piece)) {
+                    pieceCache.load(piece);
+                }
+                content = pieceCache.getLoadedBlock(piece, offset, length);
+            } else if (fileManager.isMapped()) {
+                if (load) {
+                    fileManager.loadMappedBlock(piece, offset, length);
+                }
+                content = fileManager.getMemoryBlock(piece, offset, length);
+            }
+
+            if (!connection.finishRead(block)) {
+                return;
+            }
+            if (content != null) {
+                connection.send(OutboundMessage.piece(piece, offset, content));
+            } else {
+                // The piece does not fit in the cache or could not be read
+                connection.send(OutboundMessage.piece(piece, offset, length, fileManager.getChannel(),
+                        fileManager.getPieceOffset(piece) + offset));
+            }
+        }
+    }
+}
@@ -3,70 +3,430 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
 
 public class FileManager {
 
+    // Size of the zero buffer written when preallocating the file
+    private static final int PREALLOCATION_CHUNK_SIZE = 1 << 20;
+
     private String filePath;
     private int pieceSize;
-    private int fileSize;
+    private long fileSize;
     private int numPieces;
     RandomAccessFile file;
 
-    public FileManager(String filePath, int pieceSize, int fileSize) throws FileNotFoundException {
+    // Memory mapping of the file, null unless the storage mode is MMAP
+    private MappedFile mappedFile;
+
+    // Whether the pages of the mapping were loaded by loadIntoMemory
+    private boolean mappingLoaded;
+
+    // When writes are forced to the storage device
+    private FlushPolicy flushPolicy;
+
+    // Number of completed pieces that triggers a flush with the BATCH policy
+    private int flushBatchPieces;
+
+    // Pieces completed since the last flush
+    private final List<Integer> dirtyPieces = new ArrayList<>();
+
+    // Records the completed pieces once they have been flushed, null if the
+    // pieces are not journaled
+    private BitfieldJournal journal;
+
+    // Complete pieces recently read from the file, null if not cached
+    private PieceCache pieceCache;
+
+    // Copy of the complete file in memory, null unless a seed loaded it
+    private MemoryFile memoryFile;
+
+    public FileManager(String filePath, int pieceSize, long fileSize) throws FileNotFoundException {
         this.filePath = filePath;
         this.pieceSize = pieceSize;
         this.fileSize = fileSize;
-        this.numPieces = (int) Math.ceil((double) fileSize / pieceSize);
+        this.numPieces = Math.toIntExact((fileSize + pieceSize - 1) / pieceSize);
         ;
         this.file = new RandomAccessFile(filePath, "rw");
+        this.flushPolicy = FlushPolicy.CLOSE;
     }
 
-    public synchronized void savePiece(byte[] data, int pieceIndex) {
-        // // Check if the piece is already present in the file
-        // if (bitfieldManager.hasPiece(pieceIndex)) {
-        // System.out.println("Piece " + pieceIndex + " already present. Skipping
-        // save.");
-        // return;
-        // }
+    /**
+     * Creates a FileManager using the given storage mode. The file is grown to
+     * its final size first. In MMAP mode the file is then mapped into memory,
+     * and blocks are read and written through the mapping.
+     *
+     * @param storageMode      The storage mode.
+     * @param preallocation    How the file is grown to its final size.
+     * @param flushPolicy      When writes are forced to the storage device.
+     * @param flushBatchPieces The number of completed pieces that triggers a
+     *                         flush, only used with the BATCH policy.
+     * @throws IOException
+     */
+    public FileManager(String filePath, int pieceSize, long fileSize, StorageMode storageMode,
+            Preallocation preallocation, FlushPolicy flushPolicy, int flushBatchPieces) throws IOException {
+        this(filePath, pieceSize, fileSize);
+        this.flushPolicy = flushPolicy;
+        this.flushBatchPieces = flushBatchPieces;
+        preallocate(preallocation);
+        if (storageMode == StorageMode.MMAP) {
+            this.mappedFile = new MappedFile(file.getChannel(), fileSize, pieceSize);
+        }
+    }
 
-        try {
-            // Calculate the starting position in the file for the current piece
-            int startPosition = pieceIndex * pieceSize;
+    /**
+     * Grows the file to the file size if it is shorter. Content already in the
+     * file, such as the complete file of a seed, is left as it is.
+     */
+    private void preallocate(Preallocation preallocation) throws IOException {
+        FileChannel channel = file.getChannel();
+        long length = channel.size();
+        if (length >= fileSize) {
+            return;
+        }
 
-            file.seek(startPosition);
+        if (preallocation == Preallocation.SPARSE) {
+            file.setLength(fileSize);
+            return;
+        }
+
+        ByteBuffer zeros = ByteBuffer.allocateDirect(PREALLOCATION_CHUNK_SIZE);
+        while (length < fileSize) {
+            zeros.clear();
+            zeros.limit((int) Math.min(zeros.capacity(), fileSize - length));
+            length += channel.write(zeros, length);
+        }
+    }
 
-            // Write bytes to the file
-            file.write(data);
+    /**
+     * Writes a block of a piece to the file straight from a buffer, such as a
+     * pooled direct buffer, without copying it to an array first.
+     *
+     * @param content     The block content, from the buffer's position to its
+     *                    limit. The position is advanced past the bytes
+     *                    written.
+     * @param pieceIndex  The index of the piece.
+     * @param blockOffset The offset of the block within the piece.
+     * @return The number of bytes written, less than the remaining bytes of
+     *         the buffer if the write failed.
+     */
+    public int saveBlock(ByteBuffer content, int pieceIndex, int blockOffset) {
+        long position = getPieceOffset(pieceIndex) + blockOffset;
+        if (mappedFile != null) {
+            int length = content.remaining();
+            mappedFile.write(position, content);
+            return length;
+        }
+        return writeBlock(content, position);
+    }
 
+    /**
+     * Writes to the file with positional writes, which leave the file pointer
+     * alone, so blocks of different pieces are written in parallel without a
+     * lock.
+     */
+    private int writeBlock(ByteBuffer content, long position) {
+        FileChannel channel = file.getChannel();
+        int written = 0;
+        try {
+            while (content.hasRemaining()) {
+                written += channel.write(content, position + written);
+            }
         } catch (IOException e) {
             // e.printStackTrace();
         }
+        return written;
     }
 
-    public synchronized byte[] readPiece(int pieceIndex) {
+    /**
+     * Reads part of a piece from the file into a buffer.
+     *
+     * @param content     The buffer to read into, from its position to its
+     *                    limit. The position is advanced past the bytes read.
+     * @param pieceIndex  The index of the piece.
+     * @param blockOffset The offset within the piece to read from.
+     * @return The number of bytes read, less than the remaining bytes of the
+     *         buffer at the end of the file or if the read failed.
+     */
+    public int readBlock(ByteBuffer content, int pieceIndex, int blockOffset) {
+        int length = content.remaining();
+        ByteBuffer memoryBlock = getMemoryBlock(pieceIndex, blockOffset, length);
+        if (memoryBlock != null) {
+            content.put(memoryBlock);
+            return length;
+        }
+        return readBlock(content, getPieceOffset(pieceIndex) + blockOffset);
+    }
+
+    /**
+     * Reads from the file with positional reads, which like writeBlock need
+     * no lock.
+     *
+     * @return The number of bytes read, less than the remaining bytes of the
+     *         buffer at the end of the file or if the read failed.
+     */
+    private int readBlock(ByteBuffer content, long position) {
+        FileChannel channel = file.getChannel();
+        int read = 0;
         try {
+            while (content.hasRemaining()) {
+                int n = channel.read(content, position + read);
+                if (n < 0) {
+                    break;
+                }
+                read += n;
+            }
+        } catch (IOException e) {
+            // e.printStackTrace();
+        }
+        return read;
+    }
 
-            // Calculate the starting position in the file for the current piece
-            long startPosition = (long) pieceIndex * pieceSize;
+    /**
+     * Returns the offset of a piece in the file.
+     *
+     * @param pieceIndex The index of the piece.
+     * @return The offset in bytes.
+     */
+    public long getPieceOffset(int pieceIndex) {
+        return (long) pieceIndex * pieceSize;
+    }
 
-            file.seek(startPosition);
+    /**
+     * Returns the length of a piece. Every piece has the configured piece size,
+     * except the last one which holds the rest of the file.
+     *
+     * @param pieceIndex The index of the piece.
+     * @return The length in bytes.
+     */
+    public int getPieceLength(int pieceIndex) {
+        if (pieceIndex == numPieces - 1) {
+            return (int) (fileSize - getPieceOffset(numPieces - 1));
+        }
+        return pieceSize;
+    }
 
-            byte[] data;
+    public String getFilePath() {
+        return filePath;
+    }
 
-            if (pieceIndex == numPieces - 1) {
-                data = new byte[fileSize % pieceSize];
-            } else {
-                data = new byte[pieceSize];
-            }
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public int getPieceSize() {
+        return pieceSize;
+    }
 
-            // Write bytes to the file
-            file.readFully(data);
+    public int getNumPieces() {
+        return numPieces;
+    }
 
-            return data;
+    /**
+     * Returns a view of a block held in memory, in the memory mapping or the
+     * in-memory copy of the file, to send it straight from memory.
+     *
+     * @param pieceIndex  The index of the piece.
+     * @param blockOffset The offset of the block within the piece.
+     * @param length      The length of the block.
+     * @return The block, positioned at 0 with its length as limit, or null if
+     *         the file is neither memory-mapped nor loaded into memory.
+     */
+    public ByteBuffer getMemoryBlock(int pieceIndex, int blockOffset, int length) {
+        long position = getPieceOffset(pieceIndex) + blockOffset;
+        if (memoryFile != null) {
+            return memoryFile.slice(position, length);
+        }
+        if (mappedFile != null) {
+            return mappedFile.slice(position, length);
+        }
+        return null;
+    }
 
-        } catch (IOException e) {
-            // System.out.println("synchronized readPiece");
+    /**
+     * Returns true if the blocks returned by getMemoryBlock are in physical
+     * memory, so sending them never waits for the storage device: the file
+     * was copied into memory, or its mapping was loaded.
+     */
+    public boolean isResident() {
+        return memoryFile != null || mappingLoaded;
+    }
+
+    /**
+     * Returns true if the file is memory-mapped.
+     */
+    public boolean isMapped() {
+        return mappedFile != null;
+    }
+
+    /**
+     * Loads the pages of a block of the mapping into physical memory, so
+     * sending the block from the mapping does not fault them in.
+     *
+     * @param pieceIndex  The index of the piece.
+     * @param blockOffset The offset of the block within the piece.
+     * @param length      The length of the block.
+     */
+    public void loadMappedBlock(int pieceIndex, int blockOffset, int length) {
+        mappedFile.load(getPieceOffset(pieceIndex) + blockOffset, length);
+    }
+
+    /**
+     * Loads the complete file into memory, so blocks are served without
+     * waiting for the storage device. A mapped file has its pages loaded,
+     * otherwise the file is copied into direct buffers and never read from
+     * the file again. Must only be called for a complete file that is not
+     * written to anymore.
+     *
+     * @param limit The largest file size in bytes to load.
+     * @return false if the file exceeds the limit and stays on disk.
+     * @throws IOException
+     */
+    public boolean loadIntoMemory(long limit) throws IOException {
+        if (fileSize > limit) {
+            return false;
+        }
+        if (mappedFile != null) {
+            mappedFile.load();
+            mappingLoaded = true;
+        } else {
+            memoryFile = new MemoryFile(file.getChannel(), fileSize, pieceSize);
+        }
+        return true;
+    }
+
+    /**
+     * Returns a view of a block of a complete piece in the piece cache, to
+     * send it straight from memory. A piece that is not cached is not read.
+     *
+     * @param pieceIndex  The index of the piece, which must be complete.
+     * @param blockOffset The offset of the block within the piece.
+     * @param length      The length of the block.
+     * @return The block, positioned at 0 with its length as limit, or null if
+     *         the pieces are not cached or the piece is not cached yet.
+     */
+    public ByteBuffer getCachedBlock(int pieceIndex, int blockOffset, int length) {
+        if (pieceCache == null) {
             return null;
         }
+        return pieceCache.getBlock(pieceIndex, blockOffset, length);
+    }
+
+    /**
+     * Sets the cache complete pieces are read through. Only useful without a
+     * mapping, which serves pieces from memory already.
+     *
+     * @param pieceCache The cache.
+     */
+    public void setPieceCache(PieceCache pieceCache) {
+        this.pieceCache = pieceCache;
+    }
+
+    public PieceCache getPieceCache() {
+        return pieceCache;
+    }
+
+    /**
+     * Called when every block of a piece has been written. Forces the piece to
+     * the storage device if the flush policy asks for it, or adds it to the
+     * next batch, or to the pieces forced on close.
+     *
+     * @param pieceIndex The index of the completed piece.
+     */
+    public void pieceCompleted(int pieceIndex) {
+        if (flushPolicy == FlushPolicy.PIECE) {
+            force(List.of(pieceIndex));
+            return;
+        }
+        boolean batchFull;
+        synchronized (dirtyPieces) {
+            dirtyPieces.add(pieceIndex);
+            batchFull = flushPolicy == FlushPolicy.BATCH && dirtyPieces.size() >= flushBatchPieces;
+        }
+        if (batchFull) {
+            flushDirtyPieces();
+        }
+    }
+
+    /**
+     * Sets the journal that records completed pieces once they have been
+     * forced to the storage device.
+     *
+     * @param journal The journal, opened for appending.
+     */
+    public void setJournal(BitfieldJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Forces the pieces completed since the last flush to the storage device.
+     * Called when a batch is full, and periodically so that a partial batch
+     * does not wait indefinitely.
+     */
+    public void flushDirtyPieces() {
+        List<Integer> pieces;
+        synchronized (dirtyPieces) {
+            if (dirtyPieces.isEmpty()) {
+                return;
+            }
+            pieces = new ArrayList<>(dirtyPieces);
+            dirtyPieces.clear();
+        }
+        force(pieces);
+    }
+
+    /**
+     * Forces written pieces to the storage device, then records them in the
+     * journal. With a mapping only the given pieces are forced; a file channel
+     * can only be forced as a whole, once for all of them.
+     */
+    private void force(List<Integer> pieces) {
+        if (mappedFile != null) {
+            for (int pieceIndex : pieces) {
+                mappedFile.force(getPieceOffset(pieceIndex), getPieceLength(pieceIndex));
+            }
+        } else {
+            try {
+                file.getChannel().force(false);
+            } catch (IOException e) {
+                // e.printStackTrace();
+                return;
+            }
+        }
+        if (journal != null) {
+            journal.record(pieces);
+        }
+    }
+
+    /**
+     * Forces outstanding writes to the storage device and closes the file.
+     */
+    public void close() {
+        flushDirtyPieces();
+        if (journal != null) {
+            journal.close();
+        }
+        if (mappedFile != null) {
+            mappedFile.force();
+        }
+        try {
+            file.getChannel().force(false);
+            file.close();
+        } catch (IOException e) {
+            // e.printStackTrace();
+        }
+    }
+
+    /**
+     * Returns the channel of the underlying file, for positional transfers
+     * such as FileChannel.transferTo that do not move the file pointer.
+     *
+     * @return The file channel.
+     */
+    public FileChannel getChannel() {
+        return file.getChannel();
     }
 }
@@ -0,0 +1,29 @@
+/**
+ * The FlushPolicy enum lists when data written to the file is forced to the
+ * storage device, selected with the FlushPolicy setting in Common.cfg. Without
+ * a force the operating system writes dirty pages back whenever it chooses.
+ * Whatever the policy, the file is forced once more when the FileManager is
+ * closed.
+ */
+public enum FlushPolicy {
+
+    // Force the whole file once, when the FileManager is closed
+    CLOSE,
+
+    // Force every piece as soon as its last block has been written
+    PIECE,
+
+    // Force the completed pieces together, once enough of them have
+    // accumulated or the flush interval has passed
+    BATCH;
+
+    /**
+     * Parses a FlushPolicy setting, ignoring case.
+     *
+     * @param value The configured value, e.g. "close", "piece" or "batch".
+     * @return The matching policy.
+     */
+    public static FlushPolicy parse(String value) {
+        return FlushPolicy.valueOf(value.toUpperCase());
+    }
+}
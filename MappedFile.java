@@ -0,0 +1,126 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The MappedFile class maps a file into memory in segments, since a single
+ * MappedByteBuffer cannot exceed 2 GB. The segment size is a multiple of the
+ * piece size, so a piece, and every block of it, lies within one segment.
+ * Blocks are accessed through views of the segments with their own position,
+ * so threads can read and write different blocks at the same time without a
+ * lock.
+ */
+public class MappedFile {
+
+    // Largest segment size aimed for, rounded down to a multiple of the piece
+    // size
+    private static final long TARGET_SEGMENT_SIZE = 1L << 30;
+
+    private final MappedByteBuffer[] segments;
+
+    private final long segmentSize;
+
+    /**
+     * Maps the file for reading and writing, growing it to the given size if
+     * it is shorter.
+     *
+     * @param channel   The channel of the file.
+     * @param fileSize  The size of the file in bytes.
+     * @param pieceSize The piece size in bytes.
+     * @throws IOException
+     */
+    public MappedFile(FileChannel channel, long fileSize, int pieceSize) throws IOException {
+        this.segmentSize = segmentSize(pieceSize);
+
+        int numSegments = (int) ((fileSize + segmentSize - 1) / segmentSize);
+        this.segments = new MappedByteBuffer[numSegments];
+        for (int i = 0; i < numSegments; i++) {
+            long position = i * segmentSize;
+            segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, position,
+                    Math.min(segmentSize, fileSize - position));
+        }
+    }
+
+    /**
+     * Returns the size of the segments a file is split into, the largest
+     * multiple of the piece size that does not exceed the target segment size,
+     * and at least one piece.
+     *
+     * @param pieceSize The piece size in bytes.
+     * @return The segment size in bytes.
+     */
+    static long segmentSize(int pieceSize) {
+        return Math.max(1, TARGET_SEGMENT_SIZE / pieceSize) * pieceSize;
+    }
+
+    /**
+     * Returns a view of a region of the file. The view has its own position
+     * and limit and can be used by one thread while other threads use other
+     * views.
+     *
+     * @param position The offset of the region in the file.
+     * @param length   The length of the region, which must not cross a piece
+     *                 boundary.
+     * @return The view, positioned at 0 with the region length as limit.
+     */
+    public ByteBuffer slice(long position, int length) {
+        ByteBuffer segment = segments[(int) (position / segmentSize)].duplicate();
+        int offset = (int) (position % segmentSize);
+        segment.position(offset);
+        segment.limit(offset + length);
+        return segment.slice();
+    }
+
+    /**
+     * Copies the remaining bytes of the buffer into the file.
+     *
+     * @param position The offset in the file.
+     * @param content  The bytes to write, from the buffer's position to its
+     *                 limit. The position is advanced to the limit.
+     */
+    public void write(long position, ByteBuffer content) {
+        slice(position, content.remaining()).put(content);
+    }
+
+    /**
+     * Forces changes in a region of the file to the storage device.
+     *
+     * @param position The offset of the region in the file.
+     * @param length   The length of the region, which must not cross a piece
+     *                 boundary.
+     */
+    public void force(long position, int length) {
+        segments[(int) (position / segmentSize)].force((int) (position % segmentSize), length);
+    }
+
+    /**
+     * Loads the whole mapping into physical memory, so later reads do not
+     * wait for the storage device as long as the pages are not swapped out.
+     */
+    public void load() {
+        for (MappedByteBuffer segment : segments) {
+            segment.load();
+        }
+    }
+
+    /**
+     * Loads a region of the mapping into physical memory.
+     *
+     * @param position The offset of the region in the file.
+     * @param length   The length of the region, which must not cross a piece
+     *                 boundary.
+     */
+    public void load(long position, int length) {
+        segments[(int) (position / segmentSize)].slice((int) (position % segmentSize), length).load();
+    }
+
+    /**
+     * Forces all changes to the storage device.
+     */
+    public void force() {
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+    }
+}
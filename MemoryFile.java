@@ -0,0 +1,59 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The MemoryFile class holds a complete copy of a file in direct buffers, so
+ * a seeding peer serves every block from memory and never waits for the
+ * storage device. Like a MappedFile it is split into segments of a multiple
+ * of the piece size, so every block lies within one segment. The copy is read
+ * once and never written, so it must only be made of a complete file.
+ */
+public class MemoryFile {
+
+    private final ByteBuffer[] segments;
+
+    private final long segmentSize;
+
+    /**
+     * Reads the whole file into memory.
+     *
+     * @param channel   The channel of the file.
+     * @param fileSize  The size of the file in bytes.
+     * @param pieceSize The piece size in bytes.
+     * @throws IOException If the file could not be read completely.
+     */
+    public MemoryFile(FileChannel channel, long fileSize, int pieceSize) throws IOException {
+        this.segmentSize = MappedFile.segmentSize(pieceSize);
+
+        int numSegments = (int) ((fileSize + segmentSize - 1) / segmentSize);
+        this.segments = new ByteBuffer[numSegments];
+        for (int i = 0; i < numSegments; i++) {
+            long position = i * segmentSize;
+            ByteBuffer segment = ByteBuffer.allocateDirect((int) Math.min(segmentSize, fileSize - position));
+            while (segment.hasRemaining()) {
+                if (channel.read(segment, position + segment.position()) < 0) {
+                    throw new IOException("File is shorter than " + fileSize + " bytes");
+                }
+            }
+            segment.flip();
+            segments[i] = segment;
+        }
+    }
+
+    /**
+     * Returns a read-only view of a region of the file.
+     *
+     * @param position The offset of the region in the file.
+     * @param length   The length of the region, which must not cross a piece
+     *                 boundary.
+     * @return The view, positioned at 0 with the region length as limit.
+     */
+    public ByteBuffer slice(long position, int length) {
+        ByteBuffer segment = segments[(int) (position / segmentSize)].asReadOnlyBuffer();
+        int offset = (int) (position % segmentSize);
+        segment.position(offset);
+        segment.limit(offset + length);
+        return segment.slice();
+    }
+}
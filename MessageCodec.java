@@ -0,0 +1,221 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * The MessageCodec class decodes the input of one connection: the 32 byte
+ * handshake followed by length-prefixed actual messages. Bytes are read into a
+ * buffer owned by the codec and reused for every message, and each complete
+ * message is handed to the protocol by type with its fields read in place, so
+ * decoding a message allocates nothing. A message that is only partially read
+ * stays in the buffer until the rest arrives.
+ */
+public class MessageCodec {
+
+    // Actual message types
+    static final byte CHOKE = 0;
+    static final byte UNCHOKE = 1;
+    static final byte INTERESTED = 2;
+    static final byte NOT_INTERESTED = 3;
+    static final byte HAVE = 4;
+    static final byte BITFIELD = 5;
+    static final byte REQUEST = 6;
+    static final byte PIECE = 7;
+    static final byte CANCEL = 8;
+    static final byte MANIFEST = 9;
+
+    // Handshake messages have a fixed length of 32 bytes
+    static final int HANDSHAKE_LENGTH = 32;
+
+    // Pool the read buffer is taken from
+    private final BufferPool bufferPool;
+
+    // Bytes read from the channel that do not yet form a complete message. A
+    // pooled buffer holding a full piece message, replaced by a larger heap
+    // buffer only for a message that does not fit, such as a huge bitfield
+    private ByteBuffer readBuffer;
+
+    private boolean handshakeReceived;
+
+    public MessageCodec(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+        this.readBuffer = bufferPool.acquire();
+    }
+
+    /**
+     * Reads as many bytes from the channel as fit in the read buffer.
+     *
+     * @param channel The channel to read from.
+     * @return The number of bytes read, or -1 at the end of the stream.
+     * @throws IOException
+     */
+    int readFrom(ReadableByteChannel channel) throws IOException {
+        return channel.read(readBuffer);
+    }
+
+    /**
+     * Hands every complete handshake and actual message in the read buffer to
+     * the protocol, keeping a trailing partial message for the next read.
+     *
+     * @param connection The connection the input was read from.
+     * @param protocol   The protocol handling the messages.
+     * @return false if the input is invalid and the connection must be closed.
+     */
+    boolean decode(PeerConnection connection, PeerProtocol protocol) {
+        ByteBuffer buffer = readBuffer;
+        buffer.flip();
+
+        // Size of the message that is only partially read, 0 if none
+        int required = 0;
+
+        while (true) {
+            if (!handshakeReceived) {
+                if (buffer.remaining() < HANDSHAKE_LENGTH) {
+                    break;
+                }
+                int end = buffer.position() + HANDSHAKE_LENGTH;
+                int limit = buffer.limit();
+                buffer.limit(end);
+
+                handshakeReceived = true;
+                boolean accepted = protocol.onHandshake(connection, buffer);
+
+                buffer.limit(limit);
+                buffer.position(end);
+                if (!accepted) {
+                    return false;
+                }
+                continue;
+            }
+
+            if (buffer.remaining() < 4) {
+                break;
+            }
+            int start = buffer.position();
+            int messageLength = buffer.getInt(start);
+            // Checked before any allocation, so a bogus length costs the
+            // connection and nothing more
+            if (messageLength < 1 || messageLength > protocol.getMaxMessageLength()) {
+                return false;
+            }
+            if (buffer.remaining() < 4L + messageLength) {
+                required = 4 + messageLength;
+                break;
+            }
+
+            int end = start + 4 + messageLength;
+            int limit = buffer.limit();
+            buffer.position(start + 5);
+            buffer.limit(end);
+
+            boolean valid = dispatch(connection, protocol, buffer.get(start + 4), buffer);
+
+            buffer.limit(limit);
+            buffer.position(end);
+            if (!valid) {
+                return false;
+            }
+        }
+
+        buffer.compact();
+        ensureReadCapacity(required);
+        return true;
+    }
+
+    /**
+     * Decodes the payload of one actual message and calls the protocol method
+     * for its type. Messages of unknown type are skipped.
+     *
+     * @param buffer The read buffer, positioned at the payload and limited to
+     *               the end of the message.
+     * @return false if the payload is too short for the message type.
+     */
+    private boolean dispatch(PeerConnection connection, PeerProtocol protocol, byte messageType,
+            ByteBuffer buffer) {
+        switch (messageType) {
+            case CHOKE:
+                protocol.onChoke(connection);
+                return true;
+            case UNCHOKE:
+                protocol.onUnchoke(connection);
+                return true;
+            case INTERESTED:
+                protocol.onInterested(connection);
+                return true;
+            case NOT_INTERESTED:
+                protocol.onNotInterested(connection);
+                return true;
+            case HAVE:
+                if (buffer.remaining() < 4) {
+                    return false;
+                }
+                protocol.onHave(connection, buffer.getInt());
+                return true;
+            case BITFIELD:
+                // Kept by the BitfieldManager, so it gets its own array; sent
+                // once per connection
+                byte[] bitfield = new byte[buffer.remaining()];
+                buffer.get(bitfield);
+                protocol.onBitfield(connection, bitfield);
+                return true;
+            case MANIFEST:
+                byte[] hashes = new byte[buffer.remaining()];
+                buffer.get(hashes);
+                protocol.onManifest(connection, hashes);
+                return true;
+            case REQUEST:
+                if (buffer.remaining() < 12) {
+                    return false;
+                }
+                protocol.onRequest(connection, buffer.getInt(), buffer.getInt(), buffer.getInt());
+                return true;
+            case PIECE:
+                if (buffer.remaining() < 8) {
+                    return false;
+                }
+                protocol.onPiece(connection, buffer.getInt(), buffer.getInt(), buffer);
+                return true;
+            case CANCEL:
+                if (buffer.remaining() < 12) {
+                    return false;
+                }
+                protocol.onCancel(connection, buffer.getInt(), buffer.getInt(), buffer.getInt());
+                return true;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Makes sure the read buffer can hold at least the given number of bytes,
+     * keeping any bytes already read.
+     *
+     * @param capacity The required capacity in bytes.
+     */
+    private void ensureReadCapacity(int capacity) {
+        if (readBuffer.capacity() >= capacity) {
+            return;
+        }
+        ByteBuffer larger = ByteBuffer.allocate(capacity);
+        readBuffer.flip();
+        larger.put(readBuffer);
+        bufferPool.release(readBuffer);
+        readBuffer = larger;
+    }
+
+    /**
+     * Drops everything read so far, including a partially read message.
+     */
+    void discardInput() {
+        readBuffer.clear();
+    }
+
+    /**
+     * Gives the read buffer back to the pool. The codec must not be used
+     * afterwards.
+     */
+    void release() {
+        bufferPool.release(readBuffer);
+        readBuffer = null;
+    }
+}
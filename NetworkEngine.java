@@ -0,0 +1,297 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * The NetworkEngine class runs a single selector event loop that accepts,
+ * connects, reads and writes every peer connection of this process using
+ * non-blocking channels. Complete handshakes and actual messages are handed to
+ * the PeerProtocol as they become available.
+ */
+public class NetworkEngine implements Runnable {
+
+    // How long a select may block before the completion check runs again
+    private static final long SELECT_TIMEOUT_MILLIS = 1000;
+
+    // How long to keep flushing queued messages once all peers are done
+    private static final long SHUTDOWN_FLUSH_MILLIS = 5000;
+
+    // How long to wait for remote peers to close their end of the connections
+    private static final long LINGER_MILLIS = 5000;
+
+    final Selector selector;
+
+    final PeerProtocol protocol;
+
+    // Work handed over from other threads, executed on the event loop thread
+    private final Queue<Runnable> pendingTasks;
+
+    private final List<PeerConnection> connections;
+
+    private volatile Thread loopThread;
+
+    // True once all peers are done and the output of every connection has
+    // been shut down; input is then discarded until the remote peer closes
+    private boolean draining;
+
+    public NetworkEngine(PeerProtocol protocol) throws IOException {
+        this.selector = Selector.open();
+        this.protocol = protocol;
+        this.pendingTasks = new ConcurrentLinkedQueue<>();
+        this.connections = new ArrayList<>();
+    }
+
+    /**
+     * Starts listening for incoming connections on the given port.
+     *
+     * @param port The port to listen on.
+     * @throws IOException
+     */
+    public void listen(int port) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.configureBlocking(false);
+        server.bind(new InetSocketAddress(port));
+        execute(() -> {
+            try {
+                server.register(selector, SelectionKey.OP_ACCEPT);
+            } catch (IOException e) {
+                // e.printStackTrace();
+            }
+        });
+    }
+
+    /**
+     * Starts a non-blocking connection to another peer. The handshake is sent
+     * once the connection is established.
+     *
+     * @param peer The peer to connect to.
+     */
+    public void connect(Peer peer) {
+        execute(() -> {
+            PeerConnection connection;
+            try {
+                SocketChannel channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                connection = new PeerConnection(this, channel, peer.getPeerId(), protocol.bufferPool);
+            } catch (IOException e) {
+                // e.printStackTrace();
+                return;
+            }
+            connections.add(connection);
+            protocol.onDialing(connection);
+
+            try {
+                InetSocketAddress address = new InetSocketAddress(peer.getHostName(), peer.getListeningPort());
+                if (connection.channel.connect(address)) {
+                    connection.channel.register(selector, SelectionKey.OP_READ, connection);
+                    protocol.onConnected(connection);
+                } else {
+                    connection.channel.register(selector, SelectionKey.OP_CONNECT, connection);
+                }
+            } catch (IOException | UnresolvedAddressException e) {
+                // Reported like a dropped connection, so the dial is retried
+                close(connection);
+            }
+        });
+    }
+
+    /**
+     * Closes a connection from any thread.
+     *
+     * @param connection The connection to close.
+     */
+    void disconnect(PeerConnection connection) {
+        execute(() -> close(connection));
+    }
+
+    /**
+     * Asks the event loop to write the queued messages of a connection. Only
+     * the first request until the event loop handles it queues the
+     * connection's cached task and wakes the selector, so sending a burst of
+     * messages from other threads allocates nothing.
+     *
+     * @param connection The connection with pending output.
+     */
+    void requestWrite(PeerConnection connection) {
+        if (connection.writeRequested.compareAndSet(false, true)) {
+            execute(connection.enableWrite);
+        }
+    }
+
+    /**
+     * Registers interest in writing a connection, on the event loop thread.
+     * The request flag is cleared first, so a message queued meanwhile
+     * requests another write rather than being missed.
+     *
+     * @param connection The connection with pending output.
+     */
+    void enableWrite(PeerConnection connection) {
+        connection.writeRequested.set(false);
+        SelectionKey key = connection.channel.keyFor(selector);
+        if (key != null && key.isValid()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Runs a task on the event loop thread, directly if already on it.
+     *
+     * @param task The task to run.
+     */
+    void execute(Runnable task) {
+        if (Thread.currentThread() == loopThread) {
+            task.run();
+            return;
+        }
+        pendingTasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * The event loop. Runs until every peer has the complete file, then
+     * flushes what is still queued and closes all connections.
+     */
+    @Override
+    public void run() {
+        loopThread = Thread.currentThread();
+
+        try {
+            while (!protocol.allPeersDownloadCompleted()) {
+                poll(SELECT_TIMEOUT_MILLIS);
+            }
+
+            long deadline = System.currentTimeMillis() + SHUTDOWN_FLUSH_MILLIS;
+            while (hasPendingOutput() && System.currentTimeMillis() < deadline) {
+                poll(100);
+            }
+
+            // Close gracefully, so that no remote peer loses messages it has
+            // not read yet, like the last have messages
+            for (PeerConnection connection : connections) {
+                connection.shutdownOutput();
+            }
+            draining = true;
+            deadline = System.currentTimeMillis() + LINGER_MILLIS;
+            while (!connections.isEmpty() && System.currentTimeMillis() < deadline) {
+                poll(100);
+            }
+        } catch (IOException e) {
+            // e.printStackTrace();
+        } finally {
+            for (PeerConnection connection : new ArrayList<>(connections)) {
+                close(connection);
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // e.printStackTrace();
+            }
+        }
+    }
+
+    private void poll(long timeoutMillis) throws IOException {
+        selector.select(timeoutMillis);
+
+        Runnable task;
+        while ((task = pendingTasks.poll()) != null) {
+            task.run();
+        }
+
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+
+            try {
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isAcceptable()) {
+                    accept(key);
+                    continue;
+                }
+                if (key.isConnectable()) {
+                    finishConnect(key);
+                    continue;
+                }
+                if (key.isReadable()) {
+                    read(key);
+                }
+                if (key.isValid() && key.isWritable()) {
+                    write(key);
+                }
+            } catch (IOException e) {
+                if (key.attachment() != null) {
+                    close((PeerConnection) key.attachment());
+                }
+            }
+        }
+    }
+
+    private boolean hasPendingOutput() {
+        for (PeerConnection connection : connections) {
+            if (connection.hasPendingOutput()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void accept(SelectionKey key) throws IOException {
+        SocketChannel channel = ((ServerSocketChannel) key.channel()).accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        PeerConnection connection = new PeerConnection(this, channel, null, protocol.bufferPool);
+        connections.add(connection);
+        channel.register(selector, SelectionKey.OP_READ, connection);
+        protocol.onAccepted(connection);
+    }
+
+    private void finishConnect(SelectionKey key) throws IOException {
+        PeerConnection connection = (PeerConnection) key.attachment();
+        if (connection.channel.finishConnect()) {
+            key.interestOps(SelectionKey.OP_READ);
+            protocol.onConnected(connection);
+        }
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        PeerConnection connection = (PeerConnection) key.attachment();
+
+        if (connection.read() < 0) {
+            close(connection);
+        } else if (draining) {
+            connection.discardInput();
+        } else if (!connection.processInput(protocol)) {
+            close(connection);
+        }
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        PeerConnection connection = (PeerConnection) key.attachment();
+        if (connection.flush()) {
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private void close(PeerConnection connection) {
+        if (!connections.remove(connection)) {
+            return;
+        }
+        connection.close();
+        connection.releaseReadBuffer();
+        connection.releaseOutputBuffer();
+        protocol.onDisconnect(connection);
+    }
+}
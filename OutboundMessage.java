@@ -0,0 +1,238 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The OutboundMessage class is a message queued for writing on a
+ * PeerConnection. It holds the message fields rather than encoded bytes; the
+ * connection's writer encodes it straight into its own output buffer. A piece
+ * message only encodes its header, and the block follows as the message body:
+ * either a region of a file sent with FileChannel.transferTo, or a view of
+ * memory-mapped file content written to the socket as it is. Either way piece
+ * payloads go to the socket without being copied through the heap.
+ *
+ * Messages are immutable, so one message can be queued on any number of
+ * connections: the messages without payload are shared constants, and a have
+ * message is created once for all peers it is sent to.
+ */
+public class OutboundMessage {
+
+    // Message type used for bytes that are sent as they are, like handshakes
+    private static final byte RAW = -1;
+
+    static final OutboundMessage CHOKE = new OutboundMessage(MessageCodec.CHOKE, 0, 0, 0, null);
+    static final OutboundMessage UNCHOKE = new OutboundMessage(MessageCodec.UNCHOKE, 0, 0, 0, null);
+    static final OutboundMessage INTERESTED = new OutboundMessage(MessageCodec.INTERESTED, 0, 0, 0, null);
+    static final OutboundMessage NOT_INTERESTED = new OutboundMessage(MessageCodec.NOT_INTERESTED, 0, 0, 0, null);
+
+    private final byte messageType;
+
+    // Piece index, block offset and block length, for the message types that
+    // carry them
+    private final int pieceIndex;
+    private final int blockOffset;
+    private final int blockLength;
+
+    // Payload of a bitfield or manifest message, or the bytes of a raw
+    // message
+    private final byte[] payload;
+
+    // File holding the block of a piece message, null if the block is given
+    // as a buffer or for other messages
+    private final FileChannel fileChannel;
+    private final long filePosition;
+
+    // Block of a piece message as a view of mapped memory, null if the block
+    // is given as a file region or for other messages
+    private final ByteBuffer content;
+
+    private OutboundMessage(byte messageType, int pieceIndex, int blockOffset, int blockLength, byte[] payload) {
+        this(messageType, pieceIndex, blockOffset, blockLength, payload, null, 0, null);
+    }
+
+    private OutboundMessage(byte messageType, int pieceIndex, int blockOffset, int blockLength, byte[] payload,
+            FileChannel fileChannel, long filePosition, ByteBuffer content) {
+        this.messageType = messageType;
+        this.pieceIndex = pieceIndex;
+        this.blockOffset = blockOffset;
+        this.blockLength = blockLength;
+        this.payload = payload;
+        this.fileChannel = fileChannel;
+        this.filePosition = filePosition;
+        this.content = content;
+    }
+
+    /**
+     * Creates a message whose bytes are sent as they are.
+     *
+     * @param bytes The complete message, such as a handshake.
+     */
+    public static OutboundMessage raw(byte[] bytes) {
+        return new OutboundMessage(RAW, 0, 0, 0, bytes);
+    }
+
+    public static OutboundMessage bitfield(byte[] bitfield) {
+        return new OutboundMessage(MessageCodec.BITFIELD, 0, 0, 0, bitfield);
+    }
+
+    public static OutboundMessage manifest(PieceManifest manifest) {
+        return new OutboundMessage(MessageCodec.MANIFEST, 0, 0, 0, manifest.getHashes());
+    }
+
+    public static OutboundMessage have(int pieceIndex) {
+        return new OutboundMessage(MessageCodec.HAVE, pieceIndex, 0, 0, null);
+    }
+
+    public static OutboundMessage request(BlockRequest block) {
+        return new OutboundMessage(MessageCodec.REQUEST, block.getPieceIndex(), block.getOffset(),
+                block.getLength(), null);
+    }
+
+    public static OutboundMessage cancel(BlockRequest block) {
+        return new OutboundMessage(MessageCodec.CANCEL, block.getPieceIndex(), block.getOffset(),
+                block.getLength(), null);
+    }
+
+    /**
+     * Creates a piece message carrying one block, read from the file when the
+     * message is written.
+     *
+     * @param pieceIndex   The index of the piece.
+     * @param blockOffset  The offset of the block within the piece.
+     * @param blockLength  The length of the block.
+     * @param fileChannel  The file holding the block.
+     * @param filePosition The offset of the block in the file.
+     */
+    public static OutboundMessage piece(int pieceIndex, int blockOffset, int blockLength, FileChannel fileChannel,
+            long filePosition) {
+        return new OutboundMessage(MessageCodec.PIECE, pieceIndex, blockOffset, blockLength, null, fileChannel,
+                filePosition, null);
+    }
+
+    /**
+     * Creates a piece message carrying one block held in memory, such as a
+     * view of a memory-mapped file.
+     *
+     * @param pieceIndex  The index of the piece.
+     * @param blockOffset The offset of the block within the piece.
+     * @param content     The block, from position 0 to its limit. It must not
+     *                    be modified while the message is queued.
+     */
+    public static OutboundMessage piece(int pieceIndex, int blockOffset, ByteBuffer content) {
+        return new OutboundMessage(MessageCodec.PIECE, pieceIndex, blockOffset, content.limit(), null, null, 0,
+                content);
+    }
+
+    /**
+     * Returns the number of bytes encodeTo writes. For a piece message this is
+     * only the header.
+     */
+    public int getEncodedLength() {
+        switch (messageType) {
+            case RAW:
+                return payload.length;
+            case MessageCodec.HAVE:
+                return ActualMessageManager.HAVE_MESSAGE_LENGTH;
+            case MessageCodec.REQUEST:
+            case MessageCodec.CANCEL:
+                return ActualMessageManager.REQUEST_MESSAGE_LENGTH;
+            case MessageCodec.PIECE:
+                return ActualMessageManager.PIECE_HEADER_LENGTH;
+            case MessageCodec.BITFIELD:
+            case MessageCodec.MANIFEST:
+                return 5 + payload.length;
+            default:
+                return ActualMessageManager.CONTROL_MESSAGE_LENGTH;
+        }
+    }
+
+    /**
+     * Encodes the message at the buffer's position. For a piece message only
+     * the header is encoded, and the block is sent with writeBody.
+     *
+     * @param buffer The buffer to write to, with at least getEncodedLength
+     *               bytes remaining.
+     */
+    public void encodeTo(ByteBuffer buffer) {
+        switch (messageType) {
+            case RAW:
+                buffer.put(payload);
+                break;
+            case MessageCodec.HAVE:
+                ActualMessageManager.encodeHaveMessage(buffer, pieceIndex);
+                break;
+            case MessageCodec.REQUEST:
+                ActualMessageManager.encodeRequestMessage(buffer, pieceIndex, blockOffset, blockLength);
+                break;
+            case MessageCodec.CANCEL:
+                ActualMessageManager.encodeCancelMessage(buffer, pieceIndex, blockOffset, blockLength);
+                break;
+            case MessageCodec.PIECE:
+                ActualMessageManager.encodePieceMessageHeader(buffer, pieceIndex, blockOffset, blockLength);
+                break;
+            case MessageCodec.BITFIELD:
+            case MessageCodec.MANIFEST:
+                ActualMessageManager.encodeActualMessage(buffer, messageType, payload);
+                break;
+            default:
+                ActualMessageManager.encodeControlMessage(buffer, messageType);
+        }
+    }
+
+    /**
+     * Returns true for a piece message, whose block is written after the
+     * encoded header.
+     */
+    public boolean hasBody() {
+        return fileChannel != null || content != null;
+    }
+
+    /**
+     * Writes as much of the block as the channel accepts. Must only be called
+     * once the encoded header has been written.
+     *
+     * @param channel The channel to write to.
+     * @param written The number of bytes of the block already written.
+     * @return The number of bytes of the block written so far, the block
+     *         length once it has been written completely.
+     * @throws IOException
+     */
+    public long writeBody(WritableByteChannel channel, long written) throws IOException {
+        if (content != null) {
+            // A view per call, so the shared content keeps its position
+            ByteBuffer view = content.duplicate();
+            view.position((int) written);
+            while (view.hasRemaining() && channel.write(view) > 0) {
+            }
+            return view.position();
+        }
+
+        while (written < blockLength) {
+            long transferred = fileChannel.transferTo(filePosition + written, blockLength - written, channel);
+            if (transferred <= 0) {
+                if (filePosition + written >= fileChannel.size()) {
+                    throw new IOException("File region ends past the end of the file");
+                }
+                // Socket send buffer is full
+                return written;
+            }
+            written += transferred;
+        }
+        return written;
+    }
+
+    /**
+     * Returns true if this is a piece message carrying the given block.
+     *
+     * @param block The block.
+     */
+    public boolean carries(BlockRequest block) {
+        return messageType == MessageCodec.PIECE && pieceIndex == block.getPieceIndex()
+                && blockOffset == block.getOffset() && blockLength == block.getLength();
+    }
+
+    public int getBlockLength() {
+        return blockLength;
+    }
+}
@@ -0,0 +1,482 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.HashSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The PeerConnection class holds the state of a single connection to another
+ * peer: the channel, the partially read input and the queue of messages
+ * waiting to be written. The connection is either registered with a
+ * NetworkEngine or run by its own thread with blocking I/O.
+ */
+public class PeerConnection {
+
+    // Engine whose selector this connection is registered with, null if the
+    // connection uses blocking I/O
+    final NetworkEngine engine;
+
+    final SocketChannel channel;
+
+    // True if this peer dialed the connection, false if it was accepted
+    private final boolean initiator;
+
+    // Peer ID of the remote end, known up front when dialing and from the
+    // handshake when accepting
+    private String remotePeerID;
+
+    // True once the handshake has been accepted, read by the connection
+    // manager's timeout check
+    private volatile boolean handshakeCompleted;
+
+    // True while the remote peer has this peer unchoked, written by the
+    // thread reading the connection and read by the threads filling request
+    // pipelines
+    private volatile boolean unchoked;
+
+    // Requests sent over this connection and not answered yet, created once
+    // the handshake is accepted and read by other threads from then on
+    private volatile RequestPipeline requestPipeline;
+
+    // Decoder of the input, holding a message that is only partially read
+    private final MessageCodec codec;
+
+    // Messages waiting to be written. Any thread may add to it, but only the
+    // single writer of the connection removes from it: the engine thread, or
+    // the writer thread for blocking I/O
+    final Queue<OutboundMessage> writeQueue;
+
+    // Blocks of queued piece messages the remote peer no longer wants. The
+    // writer drops those messages instead of sending them. Guarded by its
+    // own lock, which the writer holds while taking a piece message from the
+    // queue
+    private final Set<BlockRequest> cancelledBlocks;
+
+    // Requested blocks being read on the disk I/O stage, whose piece
+    // messages are not queued yet. Guarded by the lock of cancelledBlocks
+    private final Set<BlockRequest> pendingReads;
+
+    // True while a write request of the connection is waiting for the
+    // engine thread, and the task handling it, created once
+    final AtomicBoolean writeRequested;
+    final Runnable enableWrite;
+
+    // Writer thread draining the queue when the connection uses blocking I/O
+    private volatile Thread writerThread;
+
+    // Pool the read and output buffers are taken from
+    private final BufferPool bufferPool;
+
+    // Encoded messages not written yet, only used by the writer. A pooled
+    // direct buffer, so the channel writes it without copying it first
+    private ByteBuffer outputBuffer;
+
+    // Piece message whose block is being written after its header, and the
+    // number of block bytes written so far, only used by the writer
+    private OutboundMessage bodyMessage;
+    private long bodyWritten;
+
+    // True while the writer holds messages taken from the queue that are not
+    // fully written
+    private volatile boolean outputPending;
+
+    // True once this peer has signalled the end of its output, after which
+    // messages are no longer sent
+    private volatile boolean outputShutdown;
+
+    public PeerConnection(NetworkEngine engine, SocketChannel channel, String remotePeerID,
+            BufferPool bufferPool) {
+        this.engine = engine;
+        this.channel = channel;
+        this.initiator = remotePeerID != null;
+        this.remotePeerID = remotePeerID;
+        this.bufferPool = bufferPool;
+        this.codec = new MessageCodec(bufferPool);
+        this.writeQueue = new ConcurrentLinkedQueue<>();
+        this.cancelledBlocks = new HashSet<>();
+        this.pendingReads = new HashSet<>();
+        this.writeRequested = new AtomicBoolean();
+        this.enableWrite = engine != null ? () -> engine.enableWrite(this) : null;
+        this.outputBuffer = bufferPool.acquire();
+    }
+
+    /**
+     * Sends a message whose bytes are already encoded, such as a handshake.
+     *
+     * @param message The complete message to send.
+     */
+    public void send(byte[] message) {
+        send(OutboundMessage.raw(message));
+    }
+
+    /**
+     * Sends a message. Safe to call from any thread; the message is queued and
+     * written by the connection's single writer, so messages from different
+     * threads never interleave on the socket.
+     *
+     * @param message The message to send.
+     */
+    public void send(OutboundMessage message) {
+        if (outputShutdown) {
+            return;
+        }
+        writeQueue.add(message);
+        if (engine != null) {
+            engine.requestWrite(this);
+        } else {
+            LockSupport.unpark(writerThread);
+        }
+    }
+
+    /**
+     * Drops the queued piece message carrying a block, if it has not been
+     * taken from the queue yet. Only the writer removes messages from the
+     * queue, so the message is marked and the writer skips it. A block still
+     * being read on the disk I/O stage is not sent at all.
+     *
+     * @param block The block the remote peer cancelled.
+     */
+    void cancel(BlockRequest block) {
+        synchronized (cancelledBlocks) {
+            if (pendingReads.remove(block)) {
+                return;
+            }
+            for (OutboundMessage message : writeQueue) {
+                if (message.carries(block)) {
+                    cancelledBlocks.add(block);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Records a requested block that is read on the disk I/O stage before
+     * its piece message is queued, so a cancel arriving meanwhile drops it.
+     *
+     * @param block The requested block.
+     */
+    void startRead(BlockRequest block) {
+        synchronized (cancelledBlocks) {
+            pendingReads.add(block);
+        }
+    }
+
+    /**
+     * Ends a read recorded with startRead, before the piece message is
+     * queued.
+     *
+     * @param block The requested block.
+     * @return false if the remote peer cancelled the block meanwhile, so the
+     *         piece message must not be sent.
+     */
+    boolean finishRead(BlockRequest block) {
+        synchronized (cancelledBlocks) {
+            return pendingReads.remove(block);
+        }
+    }
+
+    /**
+     * Starts the thread that writes the queued messages of a connection using
+     * blocking I/O.
+     *
+     * @param threadFactory The factory creating the writer thread.
+     */
+    void startWriter(ThreadFactory threadFactory) {
+        writerThread = threadFactory.newThread(this::runWriter);
+        writerThread.start();
+    }
+
+    /**
+     * The writer loop for blocking I/O: sleeps until messages are queued, then
+     * writes everything queued so far in as few system calls as possible.
+     */
+    private void runWriter() {
+        try {
+            while (channel.isOpen()) {
+                if (writeQueue.isEmpty()) {
+                    LockSupport.park(this);
+                    continue;
+                }
+                flush();
+            }
+        } catch (IOException e) {
+            // The reading thread notices the closed channel and cleans up
+            close();
+        } finally {
+            releaseOutputBuffer();
+        }
+    }
+
+    /**
+     * Waits until the writer has written every queued message, the channel is
+     * closed or the timeout expires.
+     *
+     * @param timeoutMillis The maximum time to wait.
+     */
+    void awaitFlushed(long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (hasPendingOutput() && channel.isOpen() && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns true if messages are queued or being written.
+     */
+    boolean hasPendingOutput() {
+        return !writeQueue.isEmpty() || outputPending;
+    }
+
+    /**
+     * Signals the end of this peer's output, so the remote peer reads every
+     * message sent so far followed by the end of the stream. Closing the
+     * socket right away instead can reset the connection and make the remote
+     * peer lose messages it has not read yet. Messages sent afterwards are
+     * dropped. The caller makes sure the queued output has been written.
+     */
+    void shutdownOutput() {
+        outputShutdown = true;
+        try {
+            channel.shutdownOutput();
+        } catch (IOException e) {
+            // e.printStackTrace();
+        }
+    }
+
+    /**
+     * Reads and discards input until the remote peer closes its end of the
+     * connection, so that closing afterwards does not reset it. Blocks for at
+     * most the given time; for blocking I/O only.
+     *
+     * @param timeoutMillis The maximum time to wait for the remote peer.
+     */
+    void drainInput(int timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        try {
+            channel.socket().setSoTimeout(timeoutMillis);
+            InputStream in = channel.socket().getInputStream();
+            byte[] discarded = new byte[4096];
+            while (in.read(discarded) >= 0 && System.currentTimeMillis() < deadline) {
+            }
+        } catch (IOException e) {
+            // Timed out, or the connection is already closed
+        }
+    }
+
+    /**
+     * Discards input read with read, once the connection is shutting down.
+     */
+    void discardInput() {
+        codec.discardInput();
+    }
+
+    /**
+     * Closes the connection from any thread. The thread running the
+     * connection notices and cleans up as if the remote peer had closed it.
+     */
+    void disconnect() {
+        if (engine != null) {
+            engine.disconnect(this);
+        } else {
+            close();
+        }
+    }
+
+    /**
+     * Closes the channel, ignoring errors.
+     */
+    void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // e.printStackTrace();
+        }
+        LockSupport.unpark(writerThread);
+    }
+
+    /**
+     * Gives the read buffer back to the pool, once the connection is closed
+     * and nothing reads from it anymore.
+     */
+    void releaseReadBuffer() {
+        codec.release();
+    }
+
+    /**
+     * Gives the output buffer back to the pool, once the connection is closed
+     * and its writer has stopped.
+     */
+    void releaseOutputBuffer() {
+        bufferPool.release(outputBuffer);
+        outputBuffer = null;
+    }
+
+    /**
+     * Writes as much of the queued output as the channel accepts. Queued
+     * messages are encoded into the output buffer until it is full or a piece
+     * message header has been added, then the buffer is written with one
+     * system call and the block of the piece message is transferred from the
+     * file. Must only be called by the connection's writer.
+     *
+     * @return true if the write queue was fully drained.
+     * @throws IOException
+     */
+    boolean flush() throws IOException {
+        while (true) {
+            if (outputBuffer.position() > 0) {
+                outputBuffer.flip();
+                channel.write(outputBuffer);
+                outputBuffer.compact();
+                if (outputBuffer.position() > 0) {
+                    // Socket send buffer is full, continue when writable again
+                    return false;
+                }
+            }
+
+            if (bodyMessage != null) {
+                bodyWritten = bodyMessage.writeBody(channel, bodyWritten);
+                if (bodyWritten < bodyMessage.getBlockLength()) {
+                    return false;
+                }
+                bodyMessage = null;
+            }
+
+            // Set before taking messages from the queue, so awaitFlushed never
+            // sees them in neither place
+            outputPending = true;
+            if (!encodeQueuedMessages()) {
+                outputPending = false;
+                if (writeQueue.isEmpty()) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves queued messages into the output buffer, stopping after a piece
+     * message so its block is sent before the messages that follow it.
+     *
+     * @return false if the queue was empty.
+     */
+    private boolean encodeQueuedMessages() {
+        OutboundMessage message = writeQueue.peek();
+        if (message == null) {
+            return false;
+        }
+        if (message.getEncodedLength() > outputBuffer.capacity()) {
+            // Only a bitfield or manifest of a very large file gets here
+            bufferPool.release(outputBuffer);
+            outputBuffer = ByteBuffer.allocateDirect(message.getEncodedLength());
+        }
+
+        while (message != null && message.getEncodedLength() <= outputBuffer.remaining()) {
+            if (message.hasBody() && isCancelled(message)) {
+                message = writeQueue.peek();
+                continue;
+            }
+            message.encodeTo(outputBuffer);
+            writeQueue.poll();
+
+            if (message.hasBody()) {
+                bodyMessage = message;
+                bodyWritten = 0;
+                break;
+            }
+            message = writeQueue.peek();
+        }
+        return true;
+    }
+
+    /**
+     * Takes a piece message from the head of the queue if its block was
+     * cancelled. Decided under the lock of cancel, so a block is never
+     * marked after its message has left the queue.
+     *
+     * @param message The piece message at the head of the queue.
+     * @return true if the message was cancelled and taken from the queue.
+     */
+    private boolean isCancelled(OutboundMessage message) {
+        synchronized (cancelledBlocks) {
+            if (cancelledBlocks.isEmpty()) {
+                return false;
+            }
+            for (BlockRequest block : cancelledBlocks) {
+                if (message.carries(block)) {
+                    cancelledBlocks.remove(block);
+                    writeQueue.poll();
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Reads available input from the channel into the codec's buffer. Blocks
+     * until data arrives if the connection uses blocking I/O.
+     *
+     * @return The number of bytes read, or -1 at the end of the stream.
+     * @throws IOException
+     */
+    int read() throws IOException {
+        return codec.readFrom(channel);
+    }
+
+    /**
+     * Hands every complete message read so far to the protocol.
+     *
+     * @param protocol The protocol handling the messages.
+     * @return false if the input is invalid and the connection must be closed.
+     */
+    boolean processInput(PeerProtocol protocol) {
+        return codec.decode(this, protocol);
+    }
+
+    public boolean isInitiator() {
+        return initiator;
+    }
+
+    public synchronized String getRemotePeerID() {
+        return remotePeerID;
+    }
+
+    public synchronized void setRemotePeerID(String remotePeerID) {
+        this.remotePeerID = remotePeerID;
+    }
+
+    public boolean isHandshakeCompleted() {
+        return handshakeCompleted;
+    }
+
+    public void setHandshakeCompleted(boolean handshakeCompleted) {
+        this.handshakeCompleted = handshakeCompleted;
+    }
+
+    public boolean isUnchoked() {
+        return unchoked;
+    }
+
+    public void setUnchoked(boolean unchoked) {
+        this.unchoked = unchoked;
+    }
+
+    public RequestPipeline getRequestPipeline() {
+        return requestPipeline;
+    }
+
+    public void setRequestPipeline(RequestPipeline requestPipeline) {
+        this.requestPipeline = requestPipeline;
+    }
+}
@@ -1,361 +1,86 @@
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.Reader;
-import java.io.Writer;
-import java.net.Socket;
-import java.nio.Buffer;
-import java.nio.ByteBuffer;
-import java.util.Arrays;
-import java.util.Date;
-import java.util.List;
-import java.util.Map;
-import java.util.Random;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ThreadFactory;
 
 /**
- * The PeerConnectionHandler class is responsible for handling the communication
- * with a connected peer, including the handshake protocol and further
- * interactions.
+ * The PeerConnectionHandler class runs a single accepted connection on its own
+ * thread with blocking reads, used when the peer is not running its
+ * connections on the NetworkEngine. The remote peer starts with the handshake.
  */
 public class PeerConnectionHandler implements Runnable {
 
-    // Socket representing the connection to the client peer
-    final Socket clientPeerSocket;
+    // How long to keep writing queued messages before closing a connection
+    private static final long SHUTDOWN_FLUSH_MILLIS = 5000;
 
-    // Configuration and information parsers
-    CommonConfigParser commonConfigInfo;
-    PeerInfoConfigParser peerConfigInfo;
+    // How long to wait for the remote peer to close its end of a connection
+    private static final int LINGER_MILLIS = 5000;
 
-    // Message manager for handling communication messages
-    MessageManager messageManager;
+    // Connection to the client peer
+    final PeerConnection connection;
 
-    // Data logger for logging peer activities
-    DataLogger logger;
+    // Message handling shared with the other connection modes
+    final PeerProtocol protocol;
 
-    // Self peer information
-    Peer self;
+    // Creates the writer thread of the connection
+    final ThreadFactory threadFactory;
 
-    String clientPeerID;
-
-    // Map from peerID to it's corresponding PeerStatus class instance
-    Map<String, PeerStatus> peerStatusMap;
-
-    FileManager fileManager;
-
-    BlockingQueue<String> clientPeerIDQueue;
-
-    public PeerConnectionHandler(
-            Socket clientPeerSocket, CommonConfigParser commonConfigInfo,
-            PeerInfoConfigParser peerConfigInfo, MessageManager messageManager,
-            DataLogger logger, Peer self,
-            Map<String, PeerStatus> peerStatusMap, FileManager fileManager) {
-        this.clientPeerSocket = clientPeerSocket;
-        this.commonConfigInfo = commonConfigInfo;
-        this.peerConfigInfo = peerConfigInfo;
-        this.messageManager = messageManager;
-        this.logger = logger;
-        this.self = self;
-        this.peerStatusMap = peerStatusMap;
-        this.fileManager = fileManager;
-    }
-
-    boolean allPeersDownloadCompleted() {
-        for (Peer peer : peerConfigInfo.peers) {
-            if (!peerStatusMap.get(peer.getPeerId()).getBitfieldManager().hasCompelteFile()) {
-                return false;
-            }
-        }
-        return true;
-    }
-
-    public synchronized void write(OutputStream out, byte[] bytes) throws IOException {
-        out.write(bytes);
-        out.flush();
-    }
-
-    public synchronized void read(InputStream in, byte[] bytes) throws IOException {
-        in.read(bytes);
+    public PeerConnectionHandler(SocketChannel clientPeerChannel, PeerProtocol protocol,
+            ThreadFactory threadFactory) {
+        this.connection = new PeerConnection(null, clientPeerChannel, null, protocol.bufferPool);
+        this.protocol = protocol;
+        this.threadFactory = threadFactory;
     }
 
     /**
-     * The main execution method for the PeerConnectionHandler.
-     * Handles the handshake protocol and further interactions with the connected
-     * peer.
+     * Reads from the connection until it is closed or every peer has the
+     * complete file. Each read blocks until data arrives, while a separate
+     * writer thread sends the queued messages.
      */
     @Override
     public void run() {
-        // Create readers and writers for communication
         try {
+            connection.startWriter(threadFactory);
+            protocol.onAccepted(connection);
+            readUntilCompleted(connection, protocol);
+        } catch (IOException e) {
+            // e.printStackTrace();
+        } finally {
+            closeConnection(connection, protocol);
+        }
+    }
 
-            // Create input and output streams
-            InputStream in = new BufferedInputStream(clientPeerSocket.getInputStream());
-            OutputStream out = new BufferedOutputStream(clientPeerSocket.getOutputStream());
-
-            // Read the handshake message from the connected peer
-            byte[] response = new byte[32];
-            read(in, response);
-            ByteBuffer buffer = ByteBuffer.wrap(response);
-            Map<String, String> responseToHandshake = messageManager.handshakeMessageManager
-                    .readHandshakeMessage(buffer);
-
-            clientPeerID = responseToHandshake.get("peerId");
-            peerStatusMap.get(clientPeerID).setSocket(clientPeerSocket);
-            peerStatusMap.get(clientPeerID).setIn(in);
-            peerStatusMap.get(clientPeerID).setOut(out);
-
-            /*
-             * Data Logging: a peer establishes a TCP connection to other peer
-             */
-            logger.logConnectedFrom(clientPeerID);
-
-            // Send the local peer's handshake message in response
-            byte[] handshake = messageManager.handshakeMessageManager.generateHandshakeMessage(self.getPeerId());
-            write(out, handshake);
-
-            // Receive actualMessage (BITFIELD)
-            byte[] message_length_buffer = new byte[4];
-            read(in, message_length_buffer);
-            ByteBuffer message_length_byte_buffer = ByteBuffer.wrap(message_length_buffer);
-            int message_length = message_length_byte_buffer.getInt();
-
-            byte[] message_type_buffer = new byte[1];
-            read(in, message_type_buffer);
-
-            ByteBuffer message_type_byte_buffer = ByteBuffer.wrap(message_type_buffer);
-            int message_type = (int) message_type_byte_buffer.get();
-
-            byte[] message_payload = new byte[message_length - 1];
-            read(in, message_payload);
-
-            // Actions to perform based on received message
-            if (message_type == 5) { // BITFIELD
-
-                // Update peer bitfeild map
-                peerStatusMap.get(clientPeerID).getBitfieldManager().setBitfield(message_payload);
-
-                // Send self bitfield
-                byte[] bitfield = peerStatusMap.get(self.getPeerId()).getBitfieldManager().getBitField();
-
-                byte[] actualMessage = messageManager.actualMessageManager.generateActualMessage(
-                        bitfield.length + 1, (byte) 5, bitfield);
-
-                write(out, actualMessage);
-
-                // Verify if interested
-                byte[] bitfield1 = peerStatusMap.get(self.getPeerId()).getBitfieldManager().getBitField();
-                byte[] bitfield2 = peerStatusMap.get(clientPeerID).getBitfieldManager().getBitField();
-
-                if (peerStatusMap.get(self.getPeerId()).getBitfieldManager().interested(
-                        bitfield1,
-                        bitfield2)) {
-
-                    // Send interested message
-                    actualMessage = messageManager.actualMessageManager.generateActualMessage(
-                            1, (byte) 2, null);
-
-                    write(out, actualMessage);
-
-                } else {
-                    // Send not interested message
-                    actualMessage = messageManager.actualMessageManager.generateActualMessage(
-                            1, (byte) 3, null);
+    /**
+     * Closes a connection using blocking I/O once its writer has written what
+     * is still queued and the remote peer has closed its end, or a timeout
+     * expired. The writer releases the output buffer when it stops.
+     *
+     * @param connection The connection to close.
+     * @param protocol   The protocol to notify.
+     */
+    static void closeConnection(PeerConnection connection, PeerProtocol protocol) {
+        connection.awaitFlushed(SHUTDOWN_FLUSH_MILLIS);
+        connection.shutdownOutput();
+        connection.drainInput(LINGER_MILLIS);
+        connection.close();
+        connection.releaseReadBuffer();
+        protocol.onDisconnect(connection);
+    }
 
-                    write(out, actualMessage);
-                }
+    /**
+     * The blocking read loop shared by accepted and dialed connections.
+     *
+     * @param connection The connection to read from, in blocking mode.
+     * @param protocol   The protocol handling the messages.
+     * @throws IOException
+     */
+    static void readUntilCompleted(PeerConnection connection, PeerProtocol protocol) throws IOException {
+        while (!protocol.allPeersDownloadCompleted()) {
+            if (connection.read() < 0) {
+                return;
             }
-
-            while (!allPeersDownloadCompleted()) {
-
-                if (in.available() == 0) {
-                    continue;
-                }
-
-                // Receive actualMessage
-                message_length_buffer = new byte[4];
-                read(in, message_length_buffer);
-
-                message_length_byte_buffer = ByteBuffer.wrap(message_length_buffer);
-                message_length = message_length_byte_buffer.getInt();
-
-                message_type_buffer = new byte[1];
-                read(in, message_type_buffer);
-
-                message_type_byte_buffer = ByteBuffer.wrap(message_type_buffer);
-                message_type = (int) message_type_byte_buffer.get();
-
-                message_payload = new byte[message_length - 1];
-                read(in, message_payload);
-
-                // ByteBuffer message_payload_byte_buffer = ByteBuffer.wrap(message_payload);
-
-                if (message_type == 0) // Choke
-                {
-                    // Data Logging
-                    logger.logChoking(clientPeerID);
-                } else if (message_type == 1) // Unchoke
-                {
-                    // Data Logging: unchoking
-                    logger.logUnchoking(clientPeerID);
-
-                    for (int i = 0; i < 1; i++) {
-                        // Send request message if required
-                        byte[] bitfield1 = peerStatusMap.get(self.getPeerId()).getBitfieldManager().getBitField();
-                        byte[] bitfield2 = peerStatusMap.get(clientPeerID).getBitfieldManager().getBitField();
-
-                        List<Integer> missingPieces = peerStatusMap.get(self.getPeerId()).getBitfieldManager()
-                                .missingPieces(bitfield1, bitfield2);
-
-                        if (missingPieces.size() > 0) {
-
-                            Random rand = new Random();
-                            int randIndex;
-                            do {
-                                randIndex = rand.nextInt(missingPieces.size());
-                            } while (peerStatusMap.get(self.getPeerId())
-                                    .isRequestedPiece(missingPieces.get(randIndex)));
-                            peerStatusMap.get(self.getPeerId()).addRequestedPiece(missingPieces.get(randIndex));
-
-                            // Send request message
-                            byte[] actualMessage = messageManager.actualMessageManager.generateActualMessage(
-                                    5, (byte) 6,
-                                    ByteBuffer.allocate(4).putInt(missingPieces.get(randIndex)).array());
-
-                            write(out, actualMessage);
-
-                            // Read the received piece message
-                            message_length_buffer = new byte[4];
-                            read(in, message_length_buffer);
-
-                            message_length_byte_buffer = ByteBuffer.wrap(message_length_buffer);
-                            message_length = message_length_byte_buffer.getInt();
-
-                            message_type_buffer = new byte[1];
-                            read(in, message_type_buffer);
-
-                            message_type_byte_buffer = ByteBuffer.wrap(message_type_buffer);
-                            message_type = (int) message_type_byte_buffer.get();
-
-                            message_payload = new byte[message_length - 1];
-                            read(in, message_payload);
-
-                            fileManager.savePiece(message_payload, missingPieces.get(randIndex));
-
-                            peerStatusMap.get(self.getPeerId()).getBitfieldManager()
-                                    .setPiece(missingPieces.get(randIndex));
-
-                            int hasNumPieces = peerStatusMap.get(self.getPeerId()).getBitfieldManager()
-                                    .getNumContainedPieces();
-
-                            // Data Logging
-                            logger.logDownloadedPiece(clientPeerID, missingPieces.get(randIndex),
-                                    hasNumPieces);
-
-                            if (peerStatusMap.get(self.getPeerId()).getBitfieldManager().hasCompelteFile()) {
-                                logger.logCompletionOfDownload();
-                            }
-
-                            // Send not interested to appropriate peers
-                            for (Peer peer : peerConfigInfo.peers) {
-
-                                OutputStream out2 = peerStatusMap.get(peer.getPeerId()).getOut();
-
-                                if (peer.getPeerId() == self.getPeerId() || out2 == null) {
-                                    continue;
-                                }
-
-                                byte[] bitfield3 = peerStatusMap.get(self.getPeerId()).getBitfieldManager()
-                                        .getBitField();
-                                byte[] bitfield4 = peerStatusMap.get(clientPeerID).getBitfieldManager().getBitField();
-
-                                // send have message
-                                actualMessage = messageManager.actualMessageManager.generateActualMessage(
-                                        5, (byte) 4,
-                                        ByteBuffer.allocate(4).putInt(missingPieces.get(randIndex)).array());
-                                write(out2, actualMessage);
-
-                                // send not interested
-                                if (!peerStatusMap.get(self.getPeerId()).getBitfieldManager().interested(bitfield3,
-                                        bitfield4)) {
-                                    actualMessage = messageManager.actualMessageManager.generateActualMessage(
-                                            1, (byte) 3, null);
-
-                                    write(out2, actualMessage);
-                                }
-                            }
-                        }
-                    }
-
-                } else if (message_type == 2) // Interested
-                {
-                    /*
-                     * Data Logging: receiving ‘interested’ message
-                     */
-                    logger.logReceivedInterested(clientPeerID);
-
-                    peerStatusMap.get(clientPeerID).setInterested(true);
-
-                } else if (message_type == 3) // Not Interested
-                {
-                    /*
-                     * Data Logging: receiving ‘not interested’ message
-                     */
-                    logger.logReceivedNotInterested(clientPeerID);
-
-                    peerStatusMap.get(clientPeerID).setInterested(false);
-                } else if (message_type == 4) { // have message
-
-                    ByteBuffer message_payload_byte_buffer = ByteBuffer.wrap(message_payload);
-                    int havePiece = message_payload_byte_buffer.getInt();
-
-                    // Data Logging
-                    logger.logReceivedHave(clientPeerID, havePiece);
-
-                    // send interested message if it does not have the piece
-                    if (!peerStatusMap.get(self.getPeerId()).getBitfieldManager().hasPiece(havePiece)) {
-                        // Send interested message
-                        byte[] actualMessage = messageManager.actualMessageManager.generateActualMessage(
-                                1, (byte) 2, null);
-
-                        write(out, actualMessage);
-                    }
-                } else if (message_type == 6) // Request message
-                {
-                    // Send the requested piece
-                    ByteBuffer message_payload_byte_buffer = ByteBuffer.wrap(message_payload);
-                    int requestedPiece = message_payload_byte_buffer.getInt();
-
-                    byte[] piece_payload = fileManager.readPiece(requestedPiece);
-
-                    if (piece_payload == null){
-                        continue;
-                    }
-
-                    byte[] actualMessage = messageManager.actualMessageManager.generateActualMessage(
-                            piece_payload.length + 1, (byte) 7, piece_payload);
-
-                    peerStatusMap.get(clientPeerID).incrementPiecesDownloadSincePreviousChokingInterval();
-
-                    write(out, actualMessage);
-                }
+            if (!connection.processInput(protocol)) {
+                return;
             }
-
-            clientPeerSocket.close();
-
-        } catch (
-
-        IOException e) {
-            // e.printStackTrace();
         }
     }
-}
\ No newline at end of file
+}
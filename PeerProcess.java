@@ -1,13 +1,16 @@
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.nio.ByteBuffer;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
@@ -17,6 +20,7 @@ import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
 class CalculatePreferredNeighboursTask implements Runnable {
@@ -52,15 +56,6 @@ class CalculatePreferredNeighboursTask implements Runnable {
         this.fileManager = fileManager;
     }
 
-    public synchronized void write(OutputStream out, byte[] bytes) throws IOException {
-        out.write(bytes);
-        out.flush();
-    }
-
-    public synchronized void read(InputStream in, byte[] bytes) throws IOException {
-        in.read(bytes);
-    }
-
     // Helper method to sort a map by its values
     private static Map<String, Float> sortByValue(Map<String, Float> map) {
         List<Map.Entry<String, Float>> list = new ArrayList<>(map.entrySet());
@@ -95,69 +90,55 @@ class CalculatePreferredNeighboursTask implements Runnable {
 
         // If peer conatins complete data, k preferred neighbour are picked randomly
         // from choked and interested peers
-        try {
+        List<String> unchokedList = new ArrayList<>();
+        List<String> chokedList = new ArrayList<>();
 
-            List<String> unchokedList = new ArrayList<>();
-            List<String> chokedList = new ArrayList<>();
+        List<String> chokedAndInterested = new ArrayList<>();
 
-            List<String> chokedAndInterested = new ArrayList<>();
+        for (Peer peer : peerConfigInfo.peers) {
+            // Skip if peer is self, or not interested
+            if (peer.getPeerId() == self.getPeerId() ||
+                    !peerStatusMap.get(peer.getPeerId()).isInterested()) {
+                continue;
+            }
+
+            chokedAndInterested.add(peer.getPeerId());
+        }
+
+        if (chokedAndInterested.size() < commonConfigInfo.numberOfPreferredNeighbors) {
+            // Unchoke
+            for (String peerID : chokedAndInterested) {
+                peerStatusMap.get(peerID).setChoked(false);
+                unchokedList.add(peerID);
+                peerStatusMap.get(peerID).send(OutboundMessage.UNCHOKE);
+            }
+        } else {
+            List<String> chokedAndInterestedPeers = pickRandomElements(chokedAndInterested,
+                    commonConfigInfo.numberOfPreferredNeighbors);
 
             for (Peer peer : peerConfigInfo.peers) {
-                // Skip if peer is self, or not interested
-                if (peer.getPeerId() == self.getPeerId() ||
-                        !peerStatusMap.get(peer.getPeerId()).isInterested()) {
+
+                if (peer.getPeerId() == self.getPeerId()) {
                     continue;
                 }
 
-                chokedAndInterested.add(peer.getPeerId());
-            }
-
-            if (chokedAndInterested.size() < commonConfigInfo.numberOfPreferredNeighbors) {
                 // Unchoke
-                for (String peerID : chokedAndInterested) {
-                    peerStatusMap.get(peerID).setChoked(false);
-                    unchokedList.add(peerID);
-                    OutputStream out = peerStatusMap.get(peerID).getOut();
-                    byte[] actualMessage = messageManager.actualMessageManager.generateActualMessage(
-                            1, (byte) 1, null);
-                    write(out, actualMessage);
+                if (chokedAndInterestedPeers.contains(peer.getPeerId())) {
+                    peerStatusMap.get(peer.getPeerId()).setChoked(false);
+                    unchokedList.add(peer.getPeerId());
+                    peerStatusMap.get(peer.getPeerId()).send(OutboundMessage.UNCHOKE);
                 }
-            } else {
-                List<String> chokedAndInterestedPeers = pickRandomElements(chokedAndInterested,
-                        commonConfigInfo.numberOfPreferredNeighbors);
-
-                for (Peer peer : peerConfigInfo.peers) {
-
-                    if (peer.getPeerId() == self.getPeerId()) {
-                        continue;
-                    }
-
-                    // Unchoke
-                    if (chokedAndInterestedPeers.contains(peer.getPeerId())) {
-                        peerStatusMap.get(peer.getPeerId()).setChoked(false);
-                        unchokedList.add(peer.getPeerId());
-                        OutputStream out = peerStatusMap.get(peer.getPeerId()).getOut();
-                        byte[] actualMessage = messageManager.actualMessageManager.generateActualMessage(
-                                1, (byte) 1, null);
-                        write(out, actualMessage);
-                    }
-                    // Choke
-                    else {
-                        chokedList.add(peer.getPeerId());
-                        peerStatusMap.get(peer.getPeerId()).setChoked(true);
-                        OutputStream out = peerStatusMap.get(peer.getPeerId()).getOut();
-                        byte[] actualMessage = messageManager.actualMessageManager.generateActualMessage(
-                                1, (byte) 0, null);
-                        write(out, actualMessage);
-                    }
+                // Choke
+                else {
+                    chokedList.add(peer.getPeerId());
+                    peerStatusMap.get(peer.getPeerId()).setChoked(true);
+                    peerStatusMap.get(peer.getPeerId()).send(OutboundMessage.CHOKE);
                 }
-
             }
-            peerStatusMap.get(self.getPeerId()).setChokedList(chokedList);
-            logger.logPreferredNeighbors(unchokedList);
-        } catch (IOException e) {
-            // e.printStackTrace();
+
         }
+        peerStatusMap.get(self.getPeerId()).setChokedList(chokedList);
+        logger.logPreferredNeighbors(unchokedList);
     }
 }
 
@@ -193,47 +174,29 @@ class CalculateOptimisticallyUnchokedNeighbour implements Runnable {
         this.fileManager = fileManager;
     }
 
-    public synchronized void write(OutputStream out, byte[] bytes) throws IOException {
-        out.write(bytes);
-        out.flush();
-    }
-
-    public synchronized void read(InputStream in, byte[] bytes) throws IOException {
-        in.read(bytes);
-    }
-
     @Override
     public void run() {
 
-        try {
+        List<String> unchokedList = new ArrayList<>();
+        List<String> chokedList = new ArrayList<>();
 
-            List<String> unchokedList = new ArrayList<>();
-            List<String> chokedList = new ArrayList<>();
-
-            List<String> chokedAndInterested = new ArrayList<>();
-
-            for (Peer peer : peerConfigInfo.peers) {
-                // Skip if peer is self, or not interested
-                if (peer.getPeerId() == self.getPeerId() ||
-                        !peerStatusMap.get(peer.getPeerId()).isInterested()) {
-                    continue;
-                }
+        List<String> chokedAndInterested = new ArrayList<>();
 
-                chokedAndInterested.add(peer.getPeerId());
+        for (Peer peer : peerConfigInfo.peers) {
+            // Skip if peer is self, or not interested
+            if (peer.getPeerId() == self.getPeerId() ||
+                    !peerStatusMap.get(peer.getPeerId()).isInterested()) {
+                continue;
+            }
 
-                OutputStream out = peerStatusMap.get(peer.getPeerId()).getOut();
-                byte[] actualMessage = messageManager.actualMessageManager.generateActualMessage(
-                        1, (byte) 1, null);
-                write(out, actualMessage);
+            chokedAndInterested.add(peer.getPeerId());
 
-                peerStatusMap.get(self.getPeerId()).addToChokedList(peer.getPeerId());
-                logger.logOptimisticUnchokedNeighbor(peer.getPeerId());
+            peerStatusMap.get(peer.getPeerId()).send(OutboundMessage.UNCHOKE);
 
-                break;
-            }
+            peerStatusMap.get(self.getPeerId()).addToChokedList(peer.getPeerId());
+            logger.logOptimisticUnchokedNeighbor(peer.getPeerId());
 
-        } catch (IOException e) {
-            // e.printStackTrace();
+            break;
         }
     }
 }
@@ -244,6 +207,18 @@ class CalculateOptimisticallyUnchokedNeighbour implements Runnable {
  */
 public class PeerProcess {
 
+    // How long a blocking accept waits before checking for completion
+    private static final int ACCEPT_TIMEOUT_MILLIS = 1000;
+
+    // How often requests are checked for timeouts
+    private static final int REQUEST_TIMEOUT_CHECK_MILLIS = 250;
+
+    // How long to wait for remote peers to close their end of the connections
+    private static final long LINGER_MILLIS = 5000;
+
+    // How long to wait for the copy to the stream output before exiting
+    private static final long STREAM_OUTPUT_LINGER_MILLIS = 5000;
+
     // Configuration and information parsers
     CommonConfigParser commonConfigInfo;
     PeerInfoConfigParser peerConfigInfo;
@@ -262,19 +237,39 @@ public class PeerProcess {
 
     FileManager fileManager;
 
+    // Message handling shared by all connections
+    PeerProtocol protocol;
+
+    // Event loop driving all peer connections, null unless the connection
+    // mode is SELECTOR
+    NetworkEngine networkEngine;
+
+    // Creates the threads for connections and scheduled tasks
+    ThreadFactory threadFactory;
+
+    // Dials the earlier peers and retries failed connections
+    ConnectionManager connectionManager;
+
+    // Copies the file to the StreamOutput file, null if there is none
+    Thread streamOutputThread;
+
     /**
      * Constructor for PeerProcess.
      *
      * @param peerID The peer ID of the current peer.
-     * @throws FileNotFoundException
+     * @throws IOException
      */
-    public PeerProcess(String peerID) throws FileNotFoundException {
+    public PeerProcess(String peerID) throws IOException {
         commonConfigInfo = new CommonConfigParser("Common.cfg");
         peerConfigInfo = new PeerInfoConfigParser("PeerInfo.cfg");
         messageManager = new MessageManager();
 
         fileManager = new FileManager("./" + peerID + "/" + commonConfigInfo.fileName,
-                commonConfigInfo.pieceSize, commonConfigInfo.pieceSize);
+                commonConfigInfo.pieceSize, commonConfigInfo.fileSize, commonConfigInfo.storageMode,
+                commonConfigInfo.preallocation, commonConfigInfo.flushPolicy, commonConfigInfo.flushBatchPieces);
+        if (commonConfigInfo.storageMode == StorageMode.FILE && commonConfigInfo.pieceCacheSize > 0) {
+            fileManager.setPieceCache(new PieceCache(fileManager, commonConfigInfo.pieceCacheSize));
+        }
 
         this.self = peerConfigInfo.peerMap.get(peerID);
 
@@ -300,105 +295,221 @@ public class PeerProcess {
     }
 
     /**
-     * Starts the server port to listen for incoming connections from other peers.
+     * Sets up the connection layer selected by the ConnectionMode setting: the
+     * network engine in SELECTOR mode, a thread per connection otherwise. A
+     * peer that has the complete file also computes the piece manifest, any
+     * other peer resumes with the pieces it already has.
+     *
+     * @throws IOException
      */
-    void startServerPort() {
-        try (ServerSocket server = new ServerSocket(self.getListeningPort())) {
-            while (true) {
-                try {
-                    Socket socket = server.accept();
-
-                    Thread task = new Thread(new PeerConnectionHandler(socket,
-                            commonConfigInfo,
-                            peerConfigInfo,
-                            messageManager,
-                            logger,
-                            self,
-                            peerStatusMap,
-                            fileManager));
-                    task.start();
+    public void createConnectionLayer() throws IOException {
+        protocol = new PeerProtocol(commonConfigInfo,
+                peerConfigInfo,
+                messageManager,
+                logger,
+                self,
+                peerStatusMap,
+                fileManager);
+        threadFactory = commonConfigInfo.connectionMode.threadFactory();
+        if (!commonConfigInfo.connectionMode.isAvailable()) {
+            logger.logVirtualThreadsUnavailable();
+        }
 
-                } catch (IOException ex) {
-                }
+        if (commonConfigInfo.connectionMode == ConnectionMode.SELECTOR) {
+            networkEngine = new NetworkEngine(protocol);
+        }
+
+        connectionManager = new ConnectionManager(protocol, networkEngine, threadFactory,
+                commonConfigInfo.connectTimeout, commonConfigInfo.handshakeTimeout);
+        protocol.connectionManager = connectionManager;
+
+        if (self.hasFile()) {
+            // Serve from memory if the file is small enough
+            if (commonConfigInfo.seedMemoryLimit > 0 && !fileManager.loadIntoMemory(commonConfigInfo.seedMemoryLimit)) {
+                logger.logSeedingFromDisk(commonConfigInfo.seedMemoryLimit);
             }
-        } catch (IOException ex) {
-            // System.err.println("Couldn't start server: " + ex);
+
+            // A peer with the complete file hashes it for the others to
+            // verify their downloads, or reuses the hashes saved on an
+            // earlier start if the file has not changed since
+            protocol.manifest = PieceManifest.loadUnmodified(fileManager.getFilePath(), fileManager.getFileSize(),
+                    fileManager.getPieceSize(), fileManager.getNumPieces());
+            if (protocol.manifest == null) {
+                protocol.manifest = protocol.pieceVerifier.computeManifest();
+                protocol.manifest.save(fileManager.getFilePath(), fileManager.getFileSize(),
+                        fileManager.getPieceSize());
+            }
+        } else {
+            resumeDownload();
         }
     }
 
     /**
-     * Starts connections with other peers in the network.
+     * Opens a channel reading the shared file while it is downloaded. Reads
+     * wait for missing pieces, and with streaming piece selection the pieces
+     * ahead of the read position are downloaded first. Must be called after
+     * createConnectionLayer.
+     *
+     * @return The channel, positioned at the start of the file.
      */
-    void startConnectionWithOtherPeers() {
-        for (Peer peer : peerConfigInfo.peers) {
-            if (peer.getPeerId() == self.getPeerId()) {
-                break; // Stop making connections when the current peer ID is reached
+    public StreamingChannel openStream() {
+        return new StreamingChannel(fileManager, peerStatusMap.get(self.getPeerId()).getBitfieldManager(),
+                protocol.piecePicker);
+    }
+
+    /**
+     * Copies the shared file in order to the StreamOutput file in the peer's
+     * directory while it is downloaded, reading it through a stream, so with
+     * streaming piece selection the pieces are downloaded in the order they
+     * are copied. Does nothing if StreamOutput is not set. The copy runs on a
+     * daemon thread, and the peer exits without it if it has not finished
+     * shortly after the download.
+     */
+    void startStreamOutput() {
+        if (commonConfigInfo.streamOutput.isEmpty()) {
+            return;
+        }
+        Path output = Paths.get(".", self.getPeerId(), commonConfigInfo.streamOutput);
+        StreamingChannel stream = openStream();
+
+        // A platform thread, which blocks opening a named pipe until it has
+        // a reader
+        streamOutputThread = new Thread(() -> {
+            try (InputStream in = Channels.newInputStream(stream); OutputStream out = Files.newOutputStream(output)) {
+                in.transferTo(out);
+            } catch (IOException e) {
+                // e.printStackTrace();
+            }
+        }, "stream-output");
+        streamOutputThread.setDaemon(true);
+        streamOutputThread.start();
+    }
+
+    /**
+     * Loads the pieces completed before a restart from the journal next to
+     * the file, so they are announced in the bitfield instead of being
+     * downloaded again. If the manifest was saved too, the pieces are checked
+     * against it first, unless ResumeVerify is turned off. The journal is
+     * then rewritten with the pieces kept, and records every piece completed
+     * from now on.
+     *
+     * @throws IOException
+     */
+    private void resumeDownload() throws IOException {
+        BitfieldJournal journal = new BitfieldJournal(fileManager.getFilePath(), fileManager.getFileSize(),
+                fileManager.getPieceSize(), fileManager.getNumPieces());
+        BitSet pieces = journal.load();
+
+        PieceManifest savedManifest = PieceManifest.load(fileManager.getFilePath(), fileManager.getFileSize(),
+                fileManager.getPieceSize(), fileManager.getNumPieces());
+        if (savedManifest != null) {
+            protocol.manifest = savedManifest;
+            if (commonConfigInfo.resumeVerify) {
+                pieces = protocol.pieceVerifier.verifyAll(pieces, savedManifest);
             }
+        }
+
+        journal.rewrite(pieces);
+        fileManager.setJournal(journal);
 
-            // Data Logging: a peer establishes a TCP connection to another peer
-            logger.logTCPConnection((peer.getPeerId()));
+        BitfieldManager selfBitfieldManager = peerStatusMap.get(self.getPeerId()).getBitfieldManager();
+        for (int piece = pieces.nextSetBit(0); piece >= 0; piece = pieces.nextSetBit(piece + 1)) {
+            selfBitfieldManager.setPiece(piece);
+        }
+    }
 
+    /**
+     * Starts the server port to listen for incoming connections from other
+     * peers, and serves them until every peer has the complete file.
+     */
+    void startServerPort() {
+        if (networkEngine != null) {
             try {
-                Socket socket = new Socket(peer.getHostName(), peer.getListeningPort());
+                networkEngine.listen(self.getListeningPort());
+            } catch (IOException ex) {
+                // System.err.println("Couldn't start server: " + ex);
+            }
 
-                InputStream in = new BufferedInputStream(socket.getInputStream());
-                OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            networkEngine.run();
+            return;
+        }
 
-                peerStatusMap.get(self.getPeerId()).setSocket(socket);
-                peerStatusMap.get(self.getPeerId()).setIn(in);
-                peerStatusMap.get(self.getPeerId()).setOut(out);
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(self.getListeningPort()));
 
-                byte[] handshake = messageManager.handshakeMessageManager.generateHandshakeMessage(self.getPeerId());
-                out.write(handshake);
-                out.flush();
+            // Wake up regularly to check whether the accept loop can stop
+            server.socket().setSoTimeout(ACCEPT_TIMEOUT_MILLIS);
 
-                byte[] response = new byte[32];
-                in.read(response);
+            while (!protocol.allPeersDownloadCompleted()) {
+                try {
+                    SocketChannel channel = server.socket().accept().getChannel();
 
-                ByteBuffer buffer = ByteBuffer.wrap(response);
+                    Thread task = threadFactory.newThread(new PeerConnectionHandler(channel, protocol, threadFactory));
+                    task.start();
 
-                Map<String, String> responseToHandshake = messageManager.handshakeMessageManager
-                        .readHandshakeMessage(buffer);
+                } catch (SocketTimeoutException ex) {
+                }
+            }
+        } catch (IOException ex) {
+            // System.err.println("Couldn't start server: " + ex);
+        }
 
-                // Validate handshake correctness
-                byte[] tempZeroBits = { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 };
-                String tempZeroBitsString = new String(tempZeroBits);
+        // Once their queued messages are written, end the output of the
+        // connections whose threads are still waiting in a read. The remote
+        // peers then close their end, which ends the reads.
+        List<PeerConnection> openConnections = new ArrayList<>();
+        for (PeerStatus peerStatus : peerStatusMap.values()) {
+            PeerConnection connection = peerStatus.getConnection();
+            if (connection != null) {
+                connection.awaitFlushed(ACCEPT_TIMEOUT_MILLIS);
+                connection.shutdownOutput();
+                openConnections.add(connection);
+            }
+        }
 
-                if (!(responseToHandshake.get("handshakeHeader").equals("P2PFILESHARINGPROJ"))
-                        || !(responseToHandshake.get("zeroBits").equals(tempZeroBitsString))
-                        || !(responseToHandshake.get("peerId").equals(peer.getPeerId()))) {
-                    // Incorrect Handshake, break the loop
+        // Close what a remote peer did not close in time
+        long deadline = System.currentTimeMillis() + LINGER_MILLIS;
+        for (PeerConnection connection : openConnections) {
+            while (connection.channel.isOpen() && System.currentTimeMillis() < deadline) {
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
                     break;
                 }
+            }
+            connection.close();
+        }
+    }
 
-                Thread senderTask = new Thread(new SenderThread(socket,
-                        in, out,
-                        commonConfigInfo,
-                        peerConfigInfo,
-                        messageManager,
-                        logger,
-                        self,
-                        peer.getPeerId(),
-                        peerStatusMap,
-                        fileManager));
-                senderTask.start();
-            } catch (IOException e) {
-                // e.printStackTrace();
+    /**
+     * Starts connections with other peers in the network: every peer listed
+     * before this one is dialed in parallel, and retried until it is reached.
+     */
+    void startConnectionWithOtherPeers() {
+        List<Peer> earlierPeers = new ArrayList<>();
+        for (Peer peer : peerConfigInfo.peers) {
+            if (peer.getPeerId() == self.getPeerId()) {
+                break; // Stop making connections when the current peer ID is reached
             }
+            earlierPeers.add(peer);
         }
+        connectionManager.connectAll(earlierPeers);
     }
 
     /**
      * The main method for the PeerProcess class.
      *
      * @param args Command-line arguments.
-     * @throws FileNotFoundException
+     * @throws IOException
      */
-    public static void main(String[] args) throws FileNotFoundException {
+    public static void main(String[] args) throws IOException {
         String inputPeerID = args[0];
 
         PeerProcess peer = new PeerProcess(inputPeerID);
         peer.assignDataLogger(inputPeerID);
+        for (String setting : peer.commonConfigInfo.getInvalidSettings()) {
+            peer.logger.logInvalidSetting(setting);
+        }
 
         System.out.println("== COMMON CONFIGURATION ==");
         System.out.println(peer.commonConfigInfo.toString());
@@ -406,9 +517,11 @@ public class PeerProcess {
         System.out.println("== PEER CONFIGURATION ==");
         System.out.println(peer.peerConfigInfo.toString());
 
+        peer.createConnectionLayer();
+        peer.startStreamOutput();
         peer.startConnectionWithOtherPeers();
 
-        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(3, peer.threadFactory);
         CalculatePreferredNeighboursTask calculatePreferredNeighboursTask;
         calculatePreferredNeighboursTask = new CalculatePreferredNeighboursTask(
                 peer.commonConfigInfo,
@@ -437,7 +550,50 @@ public class PeerProcess {
         scheduler.scheduleAtFixedRate(calculateOptimisticallyUnchokedNeighbour, 0,
                 peer.commonConfigInfo.optimisticUnchokingInterval, TimeUnit.SECONDS);
 
+        // Flush partial batches of completed pieces
+        if (peer.commonConfigInfo.flushPolicy == FlushPolicy.BATCH) {
+            scheduler.scheduleAtFixedRate(peer.fileManager::flushDirtyPieces,
+                    peer.commonConfigInfo.flushInterval, peer.commonConfigInfo.flushInterval,
+                    TimeUnit.MILLISECONDS);
+        }
+
+        // Cancel and reassign block requests that peers leave unanswered
+        scheduler.scheduleAtFixedRate(peer.protocol::checkRequestTimeouts, REQUEST_TIMEOUT_CHECK_MILLIS,
+                REQUEST_TIMEOUT_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+
         peer.startServerPort();
 
+        // Every peer has the complete file
+        scheduler.shutdownNow();
+        peer.connectionManager.shutdown();
+        peer.protocol.diskIOStage.shutdown();
+        peer.protocol.pieceVerifier.shutdown();
+
+        // Give the copy to the stream output a while to finish; a named pipe
+        // nobody reads must not keep the peer running
+        if (peer.streamOutputThread != null) {
+            try {
+                peer.streamOutputThread.join(STREAM_OUTPUT_LINGER_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        peer.fileManager.close();
+
+        System.out.println("== BUFFER POOL ==");
+        System.out.println(peer.protocol.bufferPool);
+
+        System.out.println("== REQUEST TIMEOUTS ==");
+        for (Peer other : peer.peerConfigInfo.peers) {
+            if (!other.getPeerId().equals(peer.self.getPeerId())) {
+                System.out.println(other.getPeerId() + ": "
+                        + peer.peerStatusMap.get(other.getPeerId()).getTimedOutRequests());
+            }
+        }
+
+        if (peer.fileManager.getPieceCache() != null) {
+            System.out.println("== PIECE CACHE ==");
+            System.out.println(peer.fileManager.getPieceCache());
+        }
     }
 }
@@ -0,0 +1,829 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The PeerProtocol class implements the message exchange with connected peers.
+ * It is driven by the NetworkEngine or the per-connection threads, which hand
+ * it every connection event and every complete handshake and actual message
+ * read from a connection.
+ */
+public class PeerProtocol {
+
+    // Smallest size of the pooled buffers, so small blocks still leave room
+    // to batch control messages
+    private static final int MIN_BUFFER_SIZE = 16 * 1024;
+
+    // Number of corrupt pieces after which nothing is requested from a peer
+    // anymore
+    private static final int MAX_CORRUPT_PIECES = 3;
+
+    // Configuration and information parsers
+    CommonConfigParser commonConfigInfo;
+    PeerInfoConfigParser peerConfigInfo;
+
+    // Message manager for handling communication messages
+    MessageManager messageManager;
+
+    // Data logger for logging peer activities
+    DataLogger logger;
+
+    // Self peer information
+    Peer self;
+
+    // Map from peerID to it's corresponding PeerStatus class instance
+    Map<String, PeerStatus> peerStatusMap;
+
+    FileManager fileManager;
+
+    // Block progress of the pieces being downloaded
+    BlockTracker blockTracker;
+
+    // Chooses the next piece to download
+    PiecePicker piecePicker;
+
+    // Direct buffers for the input and output of the connections
+    BufferPool bufferPool;
+
+    // Writes received blocks to the file off the network threads
+    DiskIOStage diskIOStage;
+
+    // Hashes of all pieces, null until computed or received from a peer.
+    // Nothing is requested before it is known
+    volatile PieceManifest manifest;
+
+    // Checks completed pieces against the manifest
+    PieceVerifier pieceVerifier;
+
+    // Timeouts and retries of the connections, null if not managed
+    ConnectionManager connectionManager;
+
+    // Length of the longest valid actual message after its length prefix: a
+    // piece message with a full block, or a bitfield or manifest message
+    private final int maxMessageLength;
+
+    // Pieces completed whose have messages are not queued yet
+    private final AtomicInteger unannouncedPieces = new AtomicInteger();
+
+    public PeerProtocol(CommonConfigParser commonConfigInfo, PeerInfoConfigParser peerConfigInfo,
+            MessageManager messageManager, DataLogger logger, Peer self,
+            Map<String, PeerStatus> peerStatusMap, FileManager fileManager) {
+        this.commonConfigInfo = commonConfigInfo;
+        this.peerConfigInfo = peerConfigInfo;
+        this.messageManager = messageManager;
+        this.logger = logger;
+        this.self = self;
+        this.peerStatusMap = peerStatusMap;
+        this.fileManager = fileManager;
+        this.blockTracker = new BlockTracker(fileManager, commonConfigInfo.blockSize);
+        this.piecePicker = new PiecePicker(fileManager.getNumPieces(),
+                peerStatusMap.get(self.getPeerId()).getBitfieldManager(),
+                commonConfigInfo.pieceSelection == PieceSelection.STREAMING ? commonConfigInfo.streamingWindow : 0);
+        this.bufferPool = new BufferPool(
+                Math.max(commonConfigInfo.blockSize + ActualMessageManager.PIECE_HEADER_LENGTH, MIN_BUFFER_SIZE),
+                commonConfigInfo.bufferPoolSize);
+        this.diskIOStage = new DiskIOStage(fileManager, bufferPool, commonConfigInfo.diskIOThreads,
+                commonConfigInfo.diskQueueSize);
+        this.pieceVerifier = new PieceVerifier(fileManager, commonConfigInfo.verifyThreads);
+
+        long longestPayload = Math.max(commonConfigInfo.blockSize + 8L, Math.max(
+                peerStatusMap.get(self.getPeerId()).getBitfieldManager().getBitFieldSize(),
+                (long) fileManager.getNumPieces() * PieceManifest.HASH_LENGTH));
+        // The type byte, bounded so the length prefix and buffer sizes fit in
+        // an int
+        this.maxMessageLength = (int) Math.min(longestPayload + 1, Integer.MAX_VALUE - 4);
+    }
+
+    /**
+     * Returns the length of the longest valid actual message, not counting
+     * its 4 byte length prefix. Longer messages are invalid.
+     */
+    int getMaxMessageLength() {
+        return maxMessageLength;
+    }
+
+    /**
+     * Returns true once every peer has the complete file and this peer has
+     * queued the have messages for all pieces it completed, so that shutting
+     * down never loses the last announcements.
+     */
+    boolean allPeersDownloadCompleted() {
+        if (unannouncedPieces.get() > 0) {
+            return false;
+        }
+        for (Peer peer : peerConfigInfo.peers) {
+            if (!peerStatusMap.get(peer.getPeerId()).getBitfieldManager().hasCompelteFile()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Called when a non-blocking outgoing connection attempt has started.
+     *
+     * @param connection The connection being established.
+     */
+    void onDialing(PeerConnection connection) {
+        if (connectionManager != null) {
+            connectionManager.onDialing(connection);
+        }
+    }
+
+    /**
+     * Called when an incoming connection has been accepted. The remote peer
+     * starts the handshake.
+     *
+     * @param connection The accepted connection.
+     */
+    void onAccepted(PeerConnection connection) {
+        if (connectionManager != null) {
+            connectionManager.onEstablished(connection);
+        }
+    }
+
+    /**
+     * Called when an outgoing connection has been established. Starts the
+     * handshake with the peer that was dialed.
+     *
+     * @param connection The newly established connection.
+     */
+    void onConnected(PeerConnection connection) {
+        // Data Logging: a peer establishes a TCP connection to another peer
+        logger.logTCPConnection(connection.getRemotePeerID());
+
+        if (connectionManager != null) {
+            connectionManager.onEstablished(connection);
+        }
+
+        byte[] handshake = messageManager.handshakeMessageManager.generateHandshakeMessage(self.getPeerId());
+        connection.send(handshake);
+    }
+
+    /**
+     * Validates the handshake received on a connection and continues the
+     * exchange: the accepting side answers with its own handshake, the dialing
+     * side sends its bitfield.
+     *
+     * @param connection The connection the handshake was read from.
+     * @param buffer     The 32 byte handshake message, from the buffer's
+     *                   position to its limit.
+     * @return false if the handshake is invalid and the connection must be
+     *         dropped.
+     */
+    boolean onHandshake(PeerConnection connection, ByteBuffer buffer) {
+        Map<String, String> responseToHandshake = messageManager.handshakeMessageManager
+                .readHandshakeMessage(buffer);
+
+        // Validate handshake correctness
+        byte[] tempZeroBits = { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 };
+        String tempZeroBitsString = new String(tempZeroBits);
+        String clientPeerID = responseToHandshake.get("peerId");
+
+        if (!(responseToHandshake.get("handshakeHeader").equals("P2PFILESHARINGPROJ"))
+                || !(responseToHandshake.get("zeroBits").equals(tempZeroBitsString))
+                || !peerStatusMap.containsKey(clientPeerID)
+                || (connection.isInitiator() && !clientPeerID.equals(connection.getRemotePeerID()))) {
+            return false;
+        }
+
+        connection.setRemotePeerID(clientPeerID);
+        connection.setRequestPipeline(new RequestPipeline(commonConfigInfo.requestPipelineDepth,
+                commonConfigInfo.requestTimeout));
+        peerStatusMap.get(clientPeerID).setConnection(connection);
+        connection.setHandshakeCompleted(true);
+
+        if (connectionManager != null) {
+            connectionManager.onHandshakeCompleted(connection);
+        }
+
+        if (connection.isInitiator()) {
+            // Send self bitfield
+            sendBitfield(connection);
+        } else {
+            /*
+             * Data Logging: a peer establishes a TCP connection to other peer
+             */
+            logger.logConnectedFrom(clientPeerID);
+
+            // Send the local peer's handshake message in response
+            byte[] handshake = messageManager.handshakeMessageManager.generateHandshakeMessage(self.getPeerId());
+            connection.send(handshake);
+        }
+        return true;
+    }
+
+    /**
+     * Handles a choke message: no new requests are sent until unchoked, and
+     * the requests in flight are cancelled and sent to unchoked peers
+     * instead.
+     *
+     * @param connection The connection the message was read from.
+     */
+    void onChoke(PeerConnection connection) {
+        // Data Logging
+        logger.logChoking(connection.getRemotePeerID());
+
+        connection.setUnchoked(false);
+
+        List<BlockRequest> blocks = connection.getRequestPipeline().clear();
+        if (blocks.isEmpty()) {
+            return;
+        }
+        for (BlockRequest block : blocks) {
+            connection.send(OutboundMessage.cancel(block));
+        }
+        releaseBlocks(blocks);
+        fillRequestPipelines();
+    }
+
+    /**
+     * Handles an unchoke message by sending requests until the pipeline is
+     * full.
+     *
+     * @param connection The connection the message was read from.
+     */
+    void onUnchoke(PeerConnection connection) {
+        // Data Logging: unchoking
+        logger.logUnchoking(connection.getRemotePeerID());
+
+        connection.setUnchoked(true);
+        fillRequestPipeline(connection);
+    }
+
+    /**
+     * Handles an interested message.
+     *
+     * @param connection The connection the message was read from.
+     */
+    void onInterested(PeerConnection connection) {
+        String clientPeerID = connection.getRemotePeerID();
+
+        /*
+         * Data Logging: receiving ‘interested’ message
+         */
+        logger.logReceivedInterested(clientPeerID);
+
+        peerStatusMap.get(clientPeerID).setInterested(true);
+    }
+
+    /**
+     * Handles a not interested message.
+     *
+     * @param connection The connection the message was read from.
+     */
+    void onNotInterested(PeerConnection connection) {
+        String clientPeerID = connection.getRemotePeerID();
+
+        /*
+         * Data Logging: receiving ‘not interested’ message
+         */
+        logger.logReceivedNotInterested(clientPeerID);
+
+        peerStatusMap.get(clientPeerID).setInterested(false);
+    }
+
+    /**
+     * Handles a have message: records the piece for the remote peer and, if
+     * this peer is missing it, sends interested and requests it.
+     *
+     * @param connection The connection the message was read from.
+     * @param havePiece  The index of the piece the remote peer now has.
+     */
+    void onHave(PeerConnection connection, int havePiece) {
+        String clientPeerID = connection.getRemotePeerID();
+        if (havePiece < 0 || havePiece >= fileManager.getNumPieces()) {
+            return;
+        }
+
+        // Data Logging
+        logger.logReceivedHave(clientPeerID, havePiece);
+
+        peerStatusMap.get(clientPeerID).getBitfieldManager().setPiece(havePiece);
+        piecePicker.addPiece(clientPeerID, havePiece);
+
+        // send interested message if it does not have the piece
+        if (!peerStatusMap.get(self.getPeerId()).getBitfieldManager().hasPiece(havePiece)) {
+            // Send interested message
+            connection.send(OutboundMessage.INTERESTED);
+
+            // The new piece may fill a free slot in the pipeline
+            fillRequestPipeline(connection);
+        }
+    }
+
+    /**
+     * Handles a bitfield message. The accepting side answers with its own
+     * bitfield, then both sides say whether they are interested and pass the
+     * manifest on to a peer that is missing pieces.
+     *
+     * @param connection The connection the message was read from.
+     * @param bitfield   The remote peer's bitfield.
+     */
+    void onBitfield(PeerConnection connection, byte[] bitfield) {
+        String clientPeerID = connection.getRemotePeerID();
+        if (bitfield.length != peerStatusMap.get(self.getPeerId()).getBitfieldManager().getBitFieldSize()) {
+            return;
+        }
+
+        // Update peer bitfeild map
+        peerStatusMap.get(clientPeerID).getBitfieldManager().setBitfield(bitfield);
+        piecePicker.addPeer(clientPeerID, peerStatusMap.get(clientPeerID).getBitfieldManager());
+
+        // The accepting side answers with its own bitfield
+        if (!connection.isInitiator()) {
+            sendBitfield(connection);
+        }
+
+        // Verify if interested
+        if (peerStatusMap.get(self.getPeerId()).getBitfieldManager()
+                .interested(peerStatusMap.get(clientPeerID).getBitfieldManager())) {
+            // Send interested message
+            connection.send(OutboundMessage.INTERESTED);
+        } else {
+            // Send not interested message
+            connection.send(OutboundMessage.NOT_INTERESTED);
+        }
+
+        PieceManifest knownManifest = manifest;
+        if (knownManifest != null && !peerStatusMap.get(clientPeerID).getBitfieldManager().hasCompelteFile()) {
+            connection.send(OutboundMessage.manifest(knownManifest));
+        }
+    }
+
+    /**
+     * Handles a manifest message. The first valid manifest is kept, saved next
+     * to the file for a restart, and passed on to the other connected peers
+     * that are missing pieces, and blocks are requested from then on.
+     *
+     * @param connection The connection the message was read from.
+     * @param hashes     The piece hashes one after another.
+     */
+    void onManifest(PeerConnection connection, byte[] hashes) {
+        PieceManifest received = PieceManifest.decode(hashes, fileManager.getNumPieces());
+        if (received == null) {
+            return;
+        }
+        synchronized (this) {
+            if (manifest != null) {
+                return;
+            }
+            manifest = received;
+        }
+        received.save(fileManager.getFilePath(), fileManager.getFileSize(), fileManager.getPieceSize());
+
+        OutboundMessage manifestMessage = OutboundMessage.manifest(received);
+        for (Peer peer : peerConfigInfo.peers) {
+            PeerStatus peerStatus = peerStatusMap.get(peer.getPeerId());
+            PeerConnection peerConnection = peerStatus.getConnection();
+            if (peerConnection == null || peerConnection == connection
+                    || peerStatus.getBitfieldManager().hasCompelteFile()) {
+                continue;
+            }
+            peerConnection.send(manifestMessage);
+        }
+        fillRequestPipelines();
+    }
+
+    /**
+     * Handles a request message by sending the requested block. Requests for
+     * blocks outside the file or of pieces this peer does not have verified
+     * are ignored.
+     *
+     * @param connection     The connection the message was read from.
+     * @param requestedPiece The index of the piece.
+     * @param blockOffset    The offset of the block within the piece.
+     * @param blockLength    The length of the block.
+     */
+    void onRequest(PeerConnection connection, int requestedPiece, int blockOffset, int blockLength) {
+        if (requestedPiece < 0 || requestedPiece >= fileManager.getNumPieces()) {
+            return;
+        }
+        int pieceLength = fileManager.getPieceLength(requestedPiece);
+        if (blockOffset < 0 || blockLength <= 0 || blockLength > pieceLength - blockOffset
+                || !peerStatusMap.get(self.getPeerId()).getBitfieldManager().hasPiece(requestedPiece)) {
+            return;
+        }
+
+        if (blockOffset + blockLength == pieceLength) {
+            peerStatusMap.get(connection.getRemotePeerID()).incrementPiecesDownloadSincePreviousChokingInterval();
+        }
+
+        // Only the header is encoded, the block is streamed from memory, the
+        // piece cache or the file to the socket. With the piece cache or a
+        // mapping, a block that is not in memory yet is loaded on a disk I/O
+        // worker first
+        ByteBuffer block = fileManager.isResident()
+                ? fileManager.getMemoryBlock(requestedPiece, blockOffset, blockLength)
+                : fileManager.getCachedBlock(requestedPiece, blockOffset, blockLength);
+        if (block != null) {
+            connection.send(OutboundMessage.piece(requestedPiece, blockOffset, block));
+        } else if (fileManager.getPieceCache() != null || fileManager.isMapped()) {
+            diskIOStage.read(connection, new BlockRequest(requestedPiece, blockOffset, blockLength));
+        } else {
+            connection.send(OutboundMessage.piece(requestedPiece, blockOffset, blockLength, fileManager.getChannel(),
+                    fileManager.getPieceOffset(requestedPiece) + blockOffset));
+        }
+    }
+
+    /**
+     * Handles a piece message carrying one block. Blocks that were not
+     * requested over this connection are dropped, and so are copies of a
+     * block that arrived from another connection first in endgame mode. The
+     * first copy cancels the requests for the block sent over other
+     * connections.
+     *
+     * @param connection  The connection the message was read from.
+     * @param piece       The index of the piece.
+     * @param blockOffset The offset of the block within the piece.
+     * @param content     The block content, from its position to its limit.
+     *                    Only valid during the call.
+     */
+    void onPiece(PeerConnection connection, int piece, int blockOffset, ByteBuffer content) {
+        BlockRequest block = new BlockRequest(piece, blockOffset, content.remaining());
+
+        // Match the block to a request sent over this connection
+        if (!connection.getRequestPipeline().remove(block)
+                || block.getLength() != blockTracker.getBlockLength(piece, blockOffset)) {
+            return;
+        }
+
+        if (blockTracker.claimBlock(block)) {
+            cancelDuplicates(connection, block);
+            onBlockReceived(connection.getRemotePeerID(), block, content);
+        }
+
+        // Refill the pipeline for the block that arrived
+        fillRequestPipeline(connection);
+    }
+
+    /**
+     * Handles a cancel message by dropping the piece message for the block if
+     * it has not been sent yet.
+     *
+     * @param connection  The connection the message was read from.
+     * @param piece       The index of the piece.
+     * @param blockOffset The offset of the block within the piece.
+     * @param blockLength The length of the block.
+     */
+    void onCancel(PeerConnection connection, int piece, int blockOffset, int blockLength) {
+        connection.cancel(new BlockRequest(piece, blockOffset, blockLength));
+    }
+
+    /**
+     * Called when a connection is closed by either side, or a dial failed.
+     *
+     * @param connection The closed connection.
+     */
+    void onDisconnect(PeerConnection connection) {
+        String clientPeerID = connection.getRemotePeerID();
+        if (clientPeerID == null) {
+            return;
+        }
+        PeerStatus peerStatus = peerStatusMap.get(clientPeerID);
+        if (peerStatus.getConnection() == connection) {
+            peerStatus.setConnection(null);
+            // The peer's pieces are no longer available, its bitfield is
+            // kept to know when it has the complete file
+            piecePicker.removePeer(clientPeerID);
+        }
+
+        // Blocks requested over the connection are requested again elsewhere
+        if (connection.getRequestPipeline() != null) {
+            releaseRequests(connection.getRequestPipeline());
+        }
+
+        if (connectionManager != null) {
+            connectionManager.onDisconnected(connection);
+        }
+    }
+
+    private void sendBitfield(PeerConnection connection) {
+        byte[] bitfield = peerStatusMap.get(self.getPeerId()).getBitfieldManager().getBitField();
+
+        connection.send(OutboundMessage.bitfield(bitfield));
+    }
+
+    /**
+     * Requests blocks until the connection's request pipeline is full. Blocks
+     * of started pieces the remote peer has come first, so pieces complete
+     * sooner, those in the streaming window before the others; then blocks of
+     * pieces that the remote peer has and no connection has started yet, in
+     * the order of the piece picker. In endgame mode, a pipeline that still
+     * has room is filled with blocks already requested over other
+     * connections, so the last pieces do not wait on a single slow peer.
+     * Synchronized because connections may be handled on separate threads.
+     */
+    private synchronized void fillRequestPipeline(PeerConnection connection) {
+        RequestPipeline pipeline = connection.getRequestPipeline();
+        if (manifest == null || !connection.isUnchoked() || pipeline.isFull()
+                || peerStatusMap.get(connection.getRemotePeerID()).getCorruptPieces() >= MAX_CORRUPT_PIECES) {
+            return;
+        }
+
+        BitfieldManager remoteBitfieldManager = peerStatusMap.get(connection.getRemotePeerID())
+                .getBitfieldManager();
+
+        List<Integer> startedPieces = blockTracker.getPiecesWithUnrequestedBlocks();
+        piecePicker.sortStarted(startedPieces);
+        for (int piece : startedPieces) {
+            if (pipeline.isFull()) {
+                return;
+            }
+            if (remoteBitfieldManager.hasPiece(piece)
+                    && !(blockTracker.hasFailed(piece, connection.getRemotePeerID())
+                            && hasOtherSource(piece))) {
+                requestBlocks(connection, piece);
+            }
+        }
+
+        while (!pipeline.isFull()) {
+            int piece = piecePicker.pick(connection.getRemotePeerID());
+            if (piece < 0) {
+                break;
+            }
+            requestBlocks(connection, piece);
+        }
+
+        if (!pipeline.isFull() && isEndgame()) {
+            requestDuplicates(connection);
+        }
+    }
+
+    /**
+     * Returns true in endgame mode: when every block of the missing pieces
+     * has been requested, so the download is down to its last requests in
+     * flight.
+     */
+    private boolean isEndgame() {
+        int remainingPieces = fileManager.getNumPieces()
+                - peerStatusMap.get(self.getPeerId()).getBitfieldManager().getNumContainedPieces();
+        return remainingPieces > 0 && blockTracker.allBlocksRequested(remainingPieces);
+    }
+
+    /**
+     * Requests blocks the remote peer has that are already requested over
+     * other connections, until the request pipeline is full.
+     */
+    private void requestDuplicates(PeerConnection connection) {
+        RequestPipeline pipeline = connection.getRequestPipeline();
+        BitfieldManager remoteBitfieldManager = peerStatusMap.get(connection.getRemotePeerID())
+                .getBitfieldManager();
+
+        for (BlockRequest block : blockTracker.getOutstandingBlocks()) {
+            if (pipeline.isFull()) {
+                return;
+            }
+            int piece = block.getPieceIndex();
+            if (remoteBitfieldManager.hasPiece(piece) && !pipeline.contains(block)
+                    && !blockTracker.hasFailed(piece, connection.getRemotePeerID())) {
+                pipeline.add(block);
+                blockTracker.requestDuplicate(block);
+                connection.send(OutboundMessage.request(block));
+            }
+        }
+    }
+
+    /**
+     * Cancels the requests for a block sent over other connections, once a
+     * copy of it arrived, and refills their pipelines.
+     *
+     * @param connection The connection the block arrived on.
+     * @param block      The block.
+     */
+    private void cancelDuplicates(PeerConnection connection, BlockRequest block) {
+        for (PeerStatus peerStatus : peerStatusMap.values()) {
+            PeerConnection other = peerStatus.getConnection();
+            if (other == null || other == connection || other.getRequestPipeline() == null) {
+                continue;
+            }
+            if (other.getRequestPipeline().cancel(block)) {
+                other.send(OutboundMessage.cancel(block));
+                fillRequestPipeline(other);
+            }
+        }
+    }
+
+    /**
+     * Fills the request pipelines of all connections, when pieces became
+     * available to request.
+     */
+    private void fillRequestPipelines() {
+        for (PeerStatus peerStatus : peerStatusMap.values()) {
+            PeerConnection connection = peerStatus.getConnection();
+            if (connection != null && connection.getRequestPipeline() != null) {
+                fillRequestPipeline(connection);
+            }
+        }
+    }
+
+    /**
+     * Returns true if a connected peer that has not sent a corrupt copy of the
+     * piece has it, so a failed piece is requested from a different peer
+     * whenever there is one.
+     */
+    private boolean hasOtherSource(int piece) {
+        for (Peer peer : peerConfigInfo.peers) {
+            PeerStatus peerStatus = peerStatusMap.get(peer.getPeerId());
+            if (peerStatus.getConnection() != null && peerStatus.getBitfieldManager().hasPiece(piece)
+                    && !blockTracker.hasFailed(piece, peer.getPeerId())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Makes the outstanding requests of a closed connection available to the
+     * other connections.
+     */
+    private void releaseRequests(RequestPipeline pipeline) {
+        releaseBlocks(pipeline.clear());
+    }
+
+    /**
+     * Makes requested blocks that will not arrive available to be requested
+     * again.
+     */
+    private synchronized void releaseBlocks(List<BlockRequest> blocks) {
+        for (BlockRequest block : blocks) {
+            blockTracker.releaseBlock(block);
+        }
+    }
+
+    /**
+     * Cancels the requests that have been in flight longer than the timeout
+     * of their connection, and requests the blocks again. Connections whose
+     * requests timed out are refilled last, so the blocks go to other peers
+     * when they have them. Called periodically.
+     */
+    void checkRequestTimeouts() {
+        long now = System.nanoTime();
+        List<PeerConnection> stalled = new ArrayList<>();
+        for (PeerStatus peerStatus : peerStatusMap.values()) {
+            PeerConnection connection = peerStatus.getConnection();
+            if (connection == null || connection.getRequestPipeline() == null) {
+                continue;
+            }
+            List<BlockRequest> expired = connection.getRequestPipeline().removeExpired(now);
+            if (expired.isEmpty()) {
+                continue;
+            }
+            peerStatus.addTimedOutRequests(expired.size());
+            for (BlockRequest block : expired) {
+                connection.send(OutboundMessage.cancel(block));
+            }
+            releaseBlocks(expired);
+            stalled.add(connection);
+        }
+        if (stalled.isEmpty()) {
+            return;
+        }
+
+        for (PeerStatus peerStatus : peerStatusMap.values()) {
+            PeerConnection connection = peerStatus.getConnection();
+            if (connection != null && connection.getRequestPipeline() != null && !stalled.contains(connection)) {
+                fillRequestPipeline(connection);
+            }
+        }
+        for (PeerConnection connection : stalled) {
+            fillRequestPipeline(connection);
+        }
+    }
+
+    /**
+     * Requests blocks of one piece that nobody has requested yet, until the
+     * piece or the connection's request pipeline runs out.
+     */
+    private void requestBlocks(PeerConnection connection, int piece) {
+        RequestPipeline pipeline = connection.getRequestPipeline();
+
+        while (!pipeline.isFull()) {
+            BlockRequest block = blockTracker.requestNextBlock(piece);
+            if (block == null) {
+                return;
+            }
+            pipeline.add(block);
+
+            // Send request message
+            connection.send(OutboundMessage.request(block));
+        }
+    }
+
+    /**
+     * Records a verified piece as complete. Synchronized with
+     * fillRequestPipeline so a completed piece is never seen as both missing
+     * and not started.
+     */
+    private synchronized void completePiece(int piece) {
+        blockTracker.pieceVerified(piece);
+        // Counted before the piece shows in the bitfield, announced in
+        // onPieceVerified
+        unannouncedPieces.incrementAndGet();
+        peerStatusMap.get(self.getPeerId()).getBitfieldManager().setPiece(piece);
+    }
+
+    /**
+     * Queues a received block to be written to the file. The block only counts
+     * as received once it has been written, in onBlockWritten.
+     *
+     * @param content The block content, copied before the call returns.
+     */
+    private void onBlockReceived(String clientPeerID, BlockRequest block, ByteBuffer content) {
+        diskIOStage.write(block, content, written -> onBlockWritten(clientPeerID, block, written));
+    }
+
+    /**
+     * Called on a disk I/O thread once a block has been written. When it was
+     * the last block of its piece, the piece is verified. A block that could
+     * not be written is released to be requested again.
+     *
+     * @param written The number of bytes of the block written.
+     */
+    private void onBlockWritten(String clientPeerID, BlockRequest block, int written) {
+        if (written < block.getLength()) {
+            // Not stored, request it again
+            blockTracker.unclaimBlock(block);
+            return;
+        }
+
+        if (!blockTracker.blockReceived(block, clientPeerID)) {
+            return;
+        }
+        int piece = block.getPieceIndex();
+        pieceVerifier.verify(piece, manifest, matches -> onPieceVerified(clientPeerID, piece, matches));
+    }
+
+    /**
+     * Called on a verifier thread once a downloaded piece has been checked
+     * against its hash. A piece that matches is completed and announced to
+     * every connected peer. A piece that does not is downloaded again,
+     * preferably from other peers. A peer that sent the whole piece is
+     * penalized, and one that sent too many corrupt pieces is not asked for
+     * blocks anymore. It stays connected, so it still learns which pieces
+     * this peer has. A piece mixed from several peers, as endgame mode often
+     * gets, does not tell which of them is at fault, so none is penalized.
+     *
+     * @param clientPeerID The ID of the peer that sent the last block.
+     * @param piece        The index of the piece.
+     * @param matches      true if the piece matched its hash.
+     */
+    private void onPieceVerified(String clientPeerID, int piece, boolean matches) {
+        if (!matches) {
+            Set<String> senders = blockTracker.pieceFailed(piece);
+            logger.logCorruptPiece(piece, senders);
+
+            if (senders.size() == 1) {
+                peerStatusMap.get(senders.iterator().next()).incrementCorruptPieces();
+            }
+            fillRequestPipelines();
+            return;
+        }
+
+        completePiece(piece);
+
+        // Outside the lock of completePiece, a flush may take a while
+        fileManager.pieceCompleted(piece);
+
+        BitfieldManager selfBitfieldManager = peerStatusMap.get(self.getPeerId()).getBitfieldManager();
+
+        int hasNumPieces = selfBitfieldManager.getNumContainedPieces();
+
+        // Data Logging
+        logger.logDownloadedPiece(clientPeerID, piece, hasNumPieces);
+
+        if (selfBitfieldManager.hasCompelteFile()) {
+            logger.logCompletionOfDownload();
+        }
+
+        // One have message shared by every connection
+        OutboundMessage haveMessage = OutboundMessage.have(piece);
+
+        // Send have, and not interested to appropriate peers
+        for (Peer peer : peerConfigInfo.peers) {
+
+            PeerStatus peerStatus = peerStatusMap.get(peer.getPeerId());
+
+            if (peer.getPeerId() == self.getPeerId() || peerStatus.getConnection() == null) {
+                continue;
+            }
+
+            // send have message
+            peerStatus.send(haveMessage);
+
+            // send not interested
+            if (!selfBitfieldManager.interested(peerStatus.getBitfieldManager())) {
+                peerStatus.send(OutboundMessage.NOT_INTERESTED);
+            }
+        }
+        unannouncedPieces.decrementAndGet();
+
+        // Connections with nothing left to request take part in endgame mode
+        if (isEndgame()) {
+            fillRequestPipelines();
+        }
+    }
+}
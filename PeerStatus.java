@@ -1,12 +1,5 @@
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.Socket;
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 public class PeerStatus {
@@ -15,11 +8,12 @@ public class PeerStatus {
     private boolean interested;
     private boolean requestedPiece;
     private String clientPeerID;
-    private Socket socket;
-    private InputStream in;
-    private OutputStream out;
-    private Set<Integer> requestedPieces;
+    private PeerConnection connection;
     private int piecesDownloadSincePreviousChokingInterval;
+    // Number of pieces the peer sent that failed verification
+    private int corruptPieces;
+    // Number of block requests to the peer that timed out
+    private int timedOutRequests;
     private List<String> chokedList;
 
     public List<String> getChokedList() {
@@ -40,10 +34,9 @@ public class PeerStatus {
         }
     }
 
-    public PeerStatus(int fileSize, int pieceSize) {
+    public PeerStatus(long fileSize, int pieceSize) {
         bitfieldManager = new BitfieldManager(fileSize, pieceSize);
         interested = false;
-        requestedPieces = new HashSet<>();
         choked = false;
         chokedList = new ArrayList<>();
     }
@@ -60,44 +53,51 @@ public class PeerStatus {
         piecesDownloadSincePreviousChokingInterval++;
     }
 
-    public synchronized Set<Integer> getRequestedPieces() {
-        return requestedPieces;
+    public synchronized int getCorruptPieces() {
+        return corruptPieces;
     }
 
-    public synchronized void setRequestedPieces(Set<Integer> requestedPieces) {
-        this.requestedPieces = requestedPieces;
+    /**
+     * Counts a piece the peer sent that failed verification.
+     *
+     * @return The number of corrupt pieces the peer sent so far.
+     */
+    public synchronized int incrementCorruptPieces() {
+        return ++corruptPieces;
     }
 
-    public synchronized void addRequestedPiece(int piece) {
-        requestedPieces.add(piece);
+    public synchronized int getTimedOutRequests() {
+        return timedOutRequests;
     }
 
-    public synchronized boolean isRequestedPiece(int piece) {
-        return requestedPieces.contains(piece);
+    /**
+     * Counts block requests to the peer that timed out.
+     *
+     * @param requests The number of requests.
+     */
+    public synchronized void addTimedOutRequests(int requests) {
+        timedOutRequests += requests;
     }
 
-    public synchronized InputStream getIn() {
-        return in;
+    public synchronized PeerConnection getConnection() {
+        return connection;
     }
 
-    public synchronized void setIn(InputStream in) {
-        this.in = in;
+    public synchronized void setConnection(PeerConnection connection) {
+        this.connection = connection;
     }
 
-    public synchronized OutputStream getOut() {
-        return out;
-    }
-
-    public synchronized void setOut(OutputStream out) {
-        this.out = out;
-    }
-
-    public synchronized Socket getSocket() {
-        return socket;
-    }
-
-    public synchronized void setSocket(Socket socket) {
-        this.socket = socket;
+    /**
+     * Queues a message on the connection to this peer. Does nothing if no
+     * connection is established.
+     *
+     * @param message The message to send.
+     */
+    public void send(OutboundMessage message) {
+        PeerConnection connection = getConnection();
+        if (connection != null) {
+            connection.send(message);
+        }
     }
 
     public String getClientPeerID() {
@@ -0,0 +1,169 @@
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The PieceCache class keeps recently served pieces in direct buffers, so a
+ * piece requested by several peers is read from the file once and then sent
+ * from memory. Pieces are read into the cache by the disk I/O workers when
+ * one of their blocks is first requested. The cache is bounded by a total
+ * size in bytes and evicts the least recently used pieces first. Only
+ * complete pieces are cached; they never change, so a cached piece never
+ * goes stale.
+ *
+ * An evicted buffer is not reused but left to the garbage collector, since
+ * piece messages queued on connections may still be sending from it.
+ */
+public class PieceCache {
+
+    private final FileManager fileManager;
+
+    // Upper bound of the total size of the cached pieces in bytes
+    private final long capacity;
+
+    // Cached pieces by index, least recently used first
+    private final LinkedHashMap<Integer, ByteBuffer> pieces;
+
+    // Pieces being read into the cache
+    private final Set<Integer> loading;
+
+    // Total size of the cached pieces in bytes
+    private long size;
+
+    // Metrics
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param fileManager The file the pieces are read from.
+     * @param capacity    The maximum total size of the cached pieces in bytes.
+     */
+    public PieceCache(FileManager fileManager, long capacity) {
+        this.fileManager = fileManager;
+        this.capacity = capacity;
+        this.pieces = new LinkedHashMap<>(16, 0.75f, true);
+        this.loading = new HashSet<>();
+    }
+
+    /**
+     * Returns a view of a block of a cached piece, counting the request as a
+     * hit or a miss. A piece that is not cached is not read here, so the
+     * caller is not held up by the disk; it is read on a disk I/O worker with
+     * startLoad and load instead.
+     *
+     * @param pieceIndex  The index of the piece.
+     * @param blockOffset The offset of the block within the piece.
+     * @param length      The length of the block.
+     * @return The block, positioned at 0 with its length as limit, or null if
+     *         the piece is not cached.
+     */
+    public ByteBuffer getBlock(int pieceIndex, int blockOffset, int length) {
+        return getBlock(pieceIndex, blockOffset, length, true);
+    }
+
+    /**
+     * Returns a view of a block of a cached piece like getBlock, without
+     * counting a hit or a miss, for a request that was counted when it
+     * missed and whose piece has been loaded since.
+     *
+     * @param pieceIndex  The index of the piece.
+     * @param blockOffset The offset of the block within the piece.
+     * @param length      The length of the block.
+     * @return The block, or null if the piece is not cached.
+     */
+    public ByteBuffer getLoadedBlock(int pieceIndex, int blockOffset, int length) {
+        return getBlock(pieceIndex, blockOffset, length, false);
+    }
+
+    private ByteBuffer getBlock(int pieceIndex, int blockOffset, int length, boolean count) {
+        ByteBuffer piece;
+        synchronized (this) {
+            piece = pieces.get(pieceIndex);
+            if (count) {
+                if (piece == null) {
+                    misses++;
+                } else {
+                    hits++;
+                }
+            }
+        }
+        if (piece == null) {
+            return null;
+        }
+        piece = piece.asReadOnlyBuffer();
+        piece.position(blockOffset);
+        piece.limit(blockOffset + length);
+        return piece.slice();
+    }
+
+    /**
+     * Marks a piece as being loaded, so it is read once even if its blocks
+     * are requested again before it is cached.
+     *
+     * @param pieceIndex The index of the piece, which must be complete.
+     * @return true if the piece should be loaded, false if it is cached,
+     *         being loaded already or larger than the cache.
+     */
+    public synchronized boolean startLoad(int pieceIndex) {
+        if (pieces.containsKey(pieceIndex) || fileManager.getPieceLength(pieceIndex) > capacity) {
+            return false;
+        }
+        return loading.add(pieceIndex);
+    }
+
+    /**
+     * Reads a piece marked with startLoad from the file into the cache. The
+     * file is read without holding the cache's lock.
+     *
+     * @param pieceIndex The index of the piece.
+     */
+    public void load(int pieceIndex) {
+        int pieceLength = fileManager.getPieceLength(pieceIndex);
+        ByteBuffer piece = ByteBuffer.allocateDirect(pieceLength);
+        boolean read = fileManager.readBlock(piece, pieceIndex, 0) == pieceLength;
+        piece.flip();
+
+        synchronized (this) {
+            loading.remove(pieceIndex);
+            if (read && pieces.putIfAbsent(pieceIndex, piece) == null) {
+                size += pieceLength;
+                evict();
+            }
+        }
+    }
+
+    /**
+     * Removes least recently used pieces until the cache is within its
+     * capacity.
+     */
+    private void evict() {
+        Iterator<Map.Entry<Integer, ByteBuffer>> eldest = pieces.entrySet().iterator();
+        while (size > capacity && eldest.hasNext()) {
+            size -= eldest.next().getValue().capacity();
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "PieceCache [capacity=" + capacity + ", size=" + size + ", pieces=" + pieces.size() + ", hits="
+                + hits + ", misses=" + misses + ", evictions=" + evictions + "]";
+    }
+}
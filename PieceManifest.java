@@ -0,0 +1,155 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+
+/**
+ * The PieceManifest class holds the SHA-256 hash of every piece of the shared
+ * file. A peer that starts with the complete file computes it, and it is
+ * passed on to every peer that is missing pieces with a manifest message
+ * after the bitfield exchange. Each downloaded piece is checked against it
+ * before it counts as received. A peer keeps the manifest next to the shared
+ * file, so it can verify the pieces it already has when it restarts, and a
+ * peer with the complete file does not have to hash it on every start.
+ */
+public class PieceManifest {
+
+    // Length of one piece hash in bytes
+    static final int HASH_LENGTH = 32;
+
+    // First bytes of a saved manifest, "PMF1"
+    private static final int MAGIC = 0x504D4631;
+
+    // Magic, piece size and file size in front of the hashes of a saved
+    // manifest
+    private static final int HEADER_LENGTH = 16;
+
+    // Piece hashes one after another, in piece order
+    private final byte[] hashes;
+
+    public PieceManifest(byte[] hashes) {
+        this.hashes = hashes;
+    }
+
+    /**
+     * Creates a manifest from the payload of a manifest message.
+     *
+     * @param payload   The piece hashes one after another.
+     * @param numPieces The number of pieces of the file.
+     * @return The manifest, or null if the payload does not hold one hash per
+     *         piece.
+     */
+    public static PieceManifest decode(byte[] payload, int numPieces) {
+        if (payload.length != (long) numPieces * HASH_LENGTH) {
+            return null;
+        }
+        return new PieceManifest(payload);
+    }
+
+    /**
+     * Reads the manifest kept next to the shared file.
+     *
+     * @param filePath  The path of the shared file.
+     * @param fileSize  The size of the shared file in bytes.
+     * @param pieceSize The piece size in bytes.
+     * @param numPieces The number of pieces of the file.
+     * @return The manifest, or null if there is none or it was saved for a
+     *         different file size or piece size.
+     */
+    public static PieceManifest load(String filePath, long fileSize, int pieceSize, int numPieces) {
+        Path path = Paths.get(filePath + ".manifest");
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try {
+            ByteBuffer manifest = ByteBuffer.wrap(Files.readAllBytes(path));
+            if (manifest.remaining() < HEADER_LENGTH || manifest.getInt() != MAGIC
+                    || manifest.getInt() != pieceSize || manifest.getLong() != fileSize) {
+                return null;
+            }
+            byte[] hashes = new byte[manifest.remaining()];
+            manifest.get(hashes);
+            return decode(hashes, numPieces);
+        } catch (IOException e) {
+            // e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Reads the manifest kept next to the shared file, like load, but only if
+     * the file has not been modified since the manifest was saved, so the
+     * hashes still describe its content. Used by a peer that starts with the
+     * complete file, to skip hashing it again.
+     *
+     * @param filePath  The path of the shared file.
+     * @param fileSize  The size of the shared file in bytes.
+     * @param pieceSize The piece size in bytes.
+     * @param numPieces The number of pieces of the file.
+     * @return The manifest, or null if there is no matching manifest newer
+     *         than the file.
+     */
+    public static PieceManifest loadUnmodified(String filePath, long fileSize, int pieceSize, int numPieces) {
+        try {
+            FileTime fileModified = Files.getLastModifiedTime(Paths.get(filePath));
+            FileTime manifestModified = Files.getLastModifiedTime(Paths.get(filePath + ".manifest"));
+            if (fileModified.compareTo(manifestModified) > 0) {
+                return null;
+            }
+        } catch (IOException e) {
+            // e.printStackTrace();
+            return null;
+        }
+        return load(filePath, fileSize, pieceSize, numPieces);
+    }
+
+    /**
+     * Keeps the manifest next to the shared file, behind a header with the
+     * file size and piece size it was computed for. It is written to a
+     * temporary file first and renamed, so a crash never leaves a partial
+     * manifest.
+     *
+     * @param filePath  The path of the shared file.
+     * @param fileSize  The size of the shared file in bytes.
+     * @param pieceSize The piece size in bytes.
+     */
+    public void save(String filePath, long fileSize, int pieceSize) {
+        Path path = Paths.get(filePath + ".manifest");
+        Path temporary = Paths.get(filePath + ".manifest.tmp");
+        ByteBuffer manifest = ByteBuffer.allocate(HEADER_LENGTH + hashes.length);
+        manifest.putInt(MAGIC).putInt(pieceSize).putLong(fileSize).put(hashes);
+        try {
+            Files.write(temporary, manifest.array());
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // e.printStackTrace();
+        }
+    }
+
+    /**
+     * Returns the piece hashes one after another, as sent in a manifest
+     * message. The array must not be modified.
+     */
+    public byte[] getHashes() {
+        return hashes;
+    }
+
+    /**
+     * Returns true if the hash is the expected hash of the piece.
+     *
+     * @param pieceIndex The index of the piece.
+     * @param hash       The SHA-256 hash of the piece content, may be null if
+     *                   it could not be computed.
+     */
+    public boolean matches(int pieceIndex, byte[] hash) {
+        if (hash == null) {
+            return false;
+        }
+        int start = pieceIndex * HASH_LENGTH;
+        return Arrays.equals(hashes, start, start + HASH_LENGTH, hash, 0, hash.length);
+    }
+}
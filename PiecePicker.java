@@ -0,0 +1,227 @@
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * The PiecePicker class chooses which piece to download next, rarest first:
+ * of the pieces a remote peer can provide, the one the fewest connected peers
+ * have, with ties broken at random. Rare pieces are downloaded early and
+ * spread through the swarm, instead of every peer waiting on the seed for the
+ * same last pieces. The number of peers having each piece is kept up to date
+ * as bitfield and have messages arrive and connections close, rather than
+ * recounted for every pick.
+ *
+ * The candidates of every connected peer, the pieces it has that this peer
+ * is missing and has not started, are kept in a PieceSet grouped by
+ * availability. A pick takes one of the rarest candidates of the peer
+ * without looking at the others, and when the availability of a piece
+ * changes it moves one step in the candidates of the peers offering it.
+ *
+ * With streaming piece selection, the pieces within a window ahead of the
+ * read position of a StreamingChannel come first, lowest index first, so the
+ * stream waits as little as possible. Rarest first applies outside the
+ * window. The window only moves as a stream is read, so until a stream is
+ * opened, e.g. with the StreamOutput setting, it stays at the start of the
+ * file.
+ */
+public class PiecePicker {
+
+    // Number of connected peers having each piece
+    private final int[] availability;
+
+    // Pieces counted in the availability for each connected peer
+    private final Map<String, BitSet> peerPieces;
+
+    // Pieces each connected peer can provide that have not been picked yet
+    private final Map<String, PieceSet> candidates;
+
+    // Pieces picked to be downloaded, which are candidates no more
+    private final BitSet picked;
+
+    // This peer's own pieces, which are never candidates
+    private final BitfieldManager selfBitfieldManager;
+
+    // Number of pieces from the stream position that are picked first, 0
+    // if pieces are picked rarest first only
+    private final int streamingWindow;
+
+    // Piece a stream over the file reads next
+    private volatile int streamPosition;
+
+    private final Random random;
+
+    /**
+     * @param numPieces           The number of pieces of the file.
+     * @param selfBitfieldManager This peer's bitfield.
+     * @param streamingWindow     The number of pieces ahead of the stream
+     *                            position that are picked first, 0 to pick
+     *                            rarest first only.
+     */
+    public PiecePicker(int numPieces, BitfieldManager selfBitfieldManager, int streamingWindow) {
+        this.availability = new int[numPieces];
+        this.peerPieces = new HashMap<>();
+        this.candidates = new HashMap<>();
+        this.picked = new BitSet(numPieces);
+        this.selfBitfieldManager = selfBitfieldManager;
+        this.streamingWindow = streamingWindow;
+        this.random = new Random();
+    }
+
+    /**
+     * Counts the pieces of a peer whose bitfield was received. A peer that
+     * was counted before is counted again from scratch.
+     *
+     * @param peerID          The ID of the peer.
+     * @param bitfieldManager The peer's bitfield.
+     */
+    public synchronized void addPeer(String peerID, BitfieldManager bitfieldManager) {
+        removePeer(peerID);
+
+        BitSet pieces = bitfieldManager.getPieces();
+        BitSet wanted = selfBitfieldManager.missingPieces(bitfieldManager);
+        wanted.andNot(picked);
+        PieceSet peerCandidates = new PieceSet();
+        for (int piece = pieces.nextSetBit(0); piece >= 0; piece = pieces.nextSetBit(piece + 1)) {
+            incrementAvailability(piece);
+        }
+        for (int piece = wanted.nextSetBit(0); piece >= 0; piece = wanted.nextSetBit(piece + 1)) {
+            peerCandidates.add(piece, availability[piece]);
+        }
+        peerPieces.put(peerID, pieces);
+        candidates.put(peerID, peerCandidates);
+    }
+
+    /**
+     * Counts a piece a connected peer announced with a have message.
+     *
+     * @param peerID The ID of the peer.
+     * @param piece  The index of the piece.
+     */
+    public synchronized void addPiece(String peerID, int piece) {
+        BitSet pieces = peerPieces.get(peerID);
+        if (pieces == null || pieces.get(piece)) {
+            return;
+        }
+        pieces.set(piece);
+        incrementAvailability(piece);
+        if (isWanted(piece)) {
+            candidates.get(peerID).add(piece, availability[piece]);
+        }
+    }
+
+    /**
+     * Stops counting the pieces of a peer whose connection closed.
+     *
+     * @param peerID The ID of the peer.
+     */
+    public synchronized void removePeer(String peerID) {
+        BitSet pieces = peerPieces.remove(peerID);
+        candidates.remove(peerID);
+        if (pieces == null) {
+            return;
+        }
+        for (int piece = pieces.nextSetBit(0); piece >= 0; piece = pieces.nextSetBit(piece + 1)) {
+            for (PieceSet peerCandidates : candidates.values()) {
+                peerCandidates.decrement(piece, availability[piece]);
+            }
+            availability[piece]--;
+        }
+    }
+
+    /**
+     * Counts one more peer having a piece, moving the piece up in the
+     * candidates of the peers already offering it.
+     */
+    private void incrementAvailability(int piece) {
+        for (PieceSet peerCandidates : candidates.values()) {
+            peerCandidates.increment(piece, availability[piece]);
+        }
+        availability[piece]++;
+    }
+
+    /**
+     * Returns the number of connected peers having a piece.
+     *
+     * @param piece The index of the piece.
+     */
+    public synchronized int getAvailability(int piece) {
+        return availability[piece];
+    }
+
+    /**
+     * Moves the window of streaming piece selection to the piece a stream is
+     * reading.
+     *
+     * @param piece The index of the piece.
+     */
+    public void setStreamPosition(int piece) {
+        streamPosition = piece;
+    }
+
+    /**
+     * Sorts started pieces into the order their remaining blocks are
+     * requested in: the pieces within the streaming window first, then the
+     * others, lowest index first within each.
+     *
+     * @param pieces The indices of the started pieces.
+     */
+    public void sortStarted(List<Integer> pieces) {
+        long windowStart = streamPosition;
+        long windowEnd = windowStart + streamingWindow;
+        pieces.sort(Comparator.comparingLong(
+                piece -> piece >= windowStart && piece < windowEnd ? piece : (long) availability.length + piece));
+    }
+
+    /**
+     * Picks a piece a peer can provide that this peer is missing and has not
+     * picked before, and removes it from the candidates of every peer: the
+     * first one within the streaming window, otherwise the rarest one. Pieces
+     * equally rare are picked with equal probability.
+     *
+     * @param peerID The ID of the peer to download from.
+     * @return The piece to download, or -1 if the peer has nothing left to
+     *         offer.
+     */
+    public synchronized int pick(String peerID) {
+        PieceSet peerCandidates = candidates.get(peerID);
+        if (peerCandidates == null) {
+            return -1;
+        }
+
+        int windowEnd = (int) Math.min((long) streamPosition + streamingWindow, availability.length);
+        for (int piece = streamPosition; piece < windowEnd; piece++) {
+            if (peerCandidates.contains(piece)) {
+                return take(piece);
+            }
+        }
+
+        int rarest = peerCandidates.getRarest(random);
+        if (rarest < 0) {
+            return -1;
+        }
+        return take(rarest);
+    }
+
+    /**
+     * Marks a piece as picked, removing it from the candidates of every peer.
+     *
+     * @return The piece.
+     */
+    private int take(int piece) {
+        picked.set(piece);
+        for (PieceSet pieces : candidates.values()) {
+            pieces.remove(piece, availability[piece]);
+        }
+        return piece;
+    }
+
+    /**
+     * Returns true if a piece is neither owned nor picked.
+     */
+    private boolean isWanted(int piece) {
+        return !picked.get(piece) && !selfBitfieldManager.hasPiece(piece);
+    }
+}
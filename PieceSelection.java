@@ -0,0 +1,25 @@
+/**
+ * The PieceSelection enum lists the orders in which missing pieces are
+ * downloaded, selected with the PieceSelection setting in Common.cfg.
+ */
+public enum PieceSelection {
+
+    // The pieces the fewest connected peers have first, so rare pieces
+    // spread through the swarm early
+    RAREST,
+
+    // The pieces within a window ahead of the read position of a stream
+    // over the file first, in order, and the rarest pieces outside it, so
+    // the file can be read while it is downloaded
+    STREAMING;
+
+    /**
+     * Parses a PieceSelection setting, ignoring case.
+     *
+     * @param value The configured value, "rarest" or "streaming".
+     * @return The matching selection.
+     */
+    public static PieceSelection parse(String value) {
+        return PieceSelection.valueOf(value.toUpperCase());
+    }
+}
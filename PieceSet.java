@@ -0,0 +1,274 @@
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * The PieceSet class is a set of piece indices grouped by availability, the
+ * number of connected peers having each piece. The members are held in one
+ * array sorted by availability, with the position where every availability
+ * starts kept alongside, so the rarest members are always in front. A member
+ * moves to the next higher or lower availability in constant time by
+ * swapping places with the member at the boundary, and the rarest members are
+ * found without looking at the others. Adding and removing a member take time
+ * in the number of availabilities, which is at most the number of peers.
+ *
+ * Storage grows with the number of members rather than the number of pieces
+ * of the file: the array grows as needed, and the position of every member is
+ * kept in an open addressing hash table of primitive ints.
+ */
+public class PieceSet {
+
+    // Members sorted by availability
+    private int[] pieces;
+    private int size;
+
+    // Members with availability a are in positions starts[a] to
+    // starts[a + 1] - 1, and starts[levels] is the size
+    private int[] starts;
+    private int levels;
+
+    // Hash table from member to its position in pieces, probed linearly.
+    // Empty slots hold -1
+    private int[] slotPieces;
+    private int[] slotPositions;
+
+    public PieceSet() {
+        this.pieces = new int[8];
+        this.starts = new int[8];
+        this.slotPieces = new int[16];
+        this.slotPositions = new int[16];
+        Arrays.fill(slotPieces, -1);
+    }
+
+    /**
+     * Adds a piece, if it is not in the set yet.
+     *
+     * @param piece        The index of the piece.
+     * @param availability The number of connected peers having the piece.
+     */
+    public void add(int piece, int availability) {
+        if (contains(piece)) {
+            return;
+        }
+        addLevels(availability);
+        if (size == pieces.length) {
+            pieces = Arrays.copyOf(pieces, size * 2);
+        }
+
+        // Open a hole at the end of the piece's availability by moving the
+        // first member of every higher availability to its end
+        int hole = size++;
+        starts[levels] = size;
+        for (int level = levels - 1; level > availability; level--) {
+            int first = starts[level];
+            if (first != hole) {
+                move(pieces[first], hole);
+            }
+            hole = first;
+            starts[level]++;
+        }
+        put(piece, hole);
+    }
+
+    /**
+     * Removes a piece, if it is in the set.
+     *
+     * @param piece        The index of the piece.
+     * @param availability The availability the piece was added or last moved
+     *                     with.
+     */
+    public void remove(int piece, int availability) {
+        int slot = slotOf(piece);
+        if (slot < 0) {
+            return;
+        }
+        int hole = slotPositions[slot];
+        delete(slot);
+
+        // Close the hole by moving the last member of the piece's
+        // availability and of every higher one into it
+        for (int level = availability; level < levels; level++) {
+            int last = starts[level + 1] - 1;
+            if (last != hole) {
+                move(pieces[last], hole);
+            }
+            hole = last;
+            if (level > availability) {
+                starts[level]--;
+            }
+        }
+        size--;
+        starts[levels] = size;
+    }
+
+    /**
+     * Moves a member to the next higher availability.
+     *
+     * @param piece        The index of the piece.
+     * @param availability The current availability of the piece.
+     */
+    public void increment(int piece, int availability) {
+        int slot = slotOf(piece);
+        if (slot < 0) {
+            return;
+        }
+        addLevels(availability + 1);
+        // The last member of its availability becomes the first of the next
+        swap(slotPositions[slot], starts[availability + 1] - 1);
+        starts[availability + 1]--;
+    }
+
+    /**
+     * Moves a member to the next lower availability.
+     *
+     * @param piece        The index of the piece.
+     * @param availability The current availability of the piece, at least 1.
+     */
+    public void decrement(int piece, int availability) {
+        int slot = slotOf(piece);
+        if (slot < 0) {
+            return;
+        }
+        // The first member of its availability becomes the last of the one
+        // before
+        swap(slotPositions[slot], starts[availability]);
+        starts[availability]++;
+    }
+
+    /**
+     * Returns one of the members with the lowest availability, each with
+     * equal probability.
+     *
+     * @param random The source of randomness.
+     * @return The piece, or -1 if the set is empty.
+     */
+    public int getRarest(Random random) {
+        for (int level = 0; level < levels; level++) {
+            int count = starts[level + 1] - starts[level];
+            if (count > 0) {
+                return pieces[starts[level] + random.nextInt(count)];
+            }
+        }
+        return -1;
+    }
+
+    public boolean contains(int piece) {
+        return slotOf(piece) >= 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Makes room for members with availabilities up to the given one.
+     */
+    private void addLevels(int availability) {
+        while (levels <= availability) {
+            if (levels + 1 == starts.length) {
+                starts = Arrays.copyOf(starts, starts.length * 2);
+            }
+            levels++;
+            starts[levels] = size;
+        }
+    }
+
+    /**
+     * Exchanges the members at two positions.
+     */
+    private void swap(int position, int other) {
+        if (position != other) {
+            int piece = pieces[position];
+            move(pieces[other], position);
+            move(piece, other);
+        }
+    }
+
+    /**
+     * Stores a member at a position and records the position.
+     */
+    private void move(int piece, int position) {
+        pieces[position] = piece;
+        slotPositions[slotOf(piece)] = position;
+    }
+
+    /**
+     * Returns the slot of a member in the hash table, -1 if it is not a
+     * member.
+     */
+    private int slotOf(int piece) {
+        int mask = slotPieces.length - 1;
+        for (int slot = hash(piece) & mask; slotPieces[slot] >= 0; slot = (slot + 1) & mask) {
+            if (slotPieces[slot] == piece) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Stores a new member at a position. The table is kept at most half full.
+     */
+    private void put(int piece, int position) {
+        if (size * 2 > slotPieces.length) {
+            rehash(slotPieces.length * 2);
+        }
+        pieces[position] = piece;
+        int mask = slotPieces.length - 1;
+        int slot = hash(piece) & mask;
+        while (slotPieces[slot] >= 0) {
+            slot = (slot + 1) & mask;
+        }
+        slotPieces[slot] = piece;
+        slotPositions[slot] = position;
+    }
+
+    /**
+     * Empties a slot, moving back later entries of the same probe sequence
+     * so none of them is cut off from its home slot.
+     */
+    private void delete(int slot) {
+        int mask = slotPieces.length - 1;
+        int empty = slot;
+        for (int next = (slot + 1) & mask; slotPieces[next] >= 0; next = (next + 1) & mask) {
+            int home = hash(slotPieces[next]) & mask;
+            // Move the entry unless its home slot lies cyclically after the
+            // empty slot, up to its current slot
+            if (((next - home) & mask) >= ((next - empty) & mask)) {
+                slotPieces[empty] = slotPieces[next];
+                slotPositions[empty] = slotPositions[next];
+                empty = next;
+            }
+        }
+        slotPieces[empty] = -1;
+    }
+
+    private void rehash(int capacity) {
+        int[] oldPieces = slotPieces;
+        int[] oldPositions = slotPositions;
+        slotPieces = new int[capacity];
+        slotPositions = new int[capacity];
+        Arrays.fill(slotPieces, -1);
+
+        int mask = capacity - 1;
+        for (int i = 0; i < oldPieces.length; i++) {
+            if (oldPieces[i] >= 0) {
+                int slot = hash(oldPieces[i]) & mask;
+                while (slotPieces[slot] >= 0) {
+                    slot = (slot + 1) & mask;
+                }
+                slotPieces[slot] = oldPieces[i];
+                slotPositions[slot] = oldPositions[i];
+            }
+        }
+    }
+
+    // Spreads consecutive piece indices over the table
+    private static int hash(int piece) {
+        int h = piece * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,175 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * The PieceVerifier class computes SHA-256 hashes of pieces on a pool of
+ * worker threads, reading them back from the file after their blocks have
+ * been written. Pieces are hashed in parallel, so verification keeps up with
+ * pieces arriving from several connections at once, and the threads writing
+ * blocks or reading from the network never wait for a hash.
+ */
+public class PieceVerifier {
+
+    private static final String HASH_ALGORITHM = "SHA-256";
+
+    // Size of the chunks a piece is read in when the file is not held in
+    // memory
+    private static final int READ_CHUNK_SIZE = 64 * 1024;
+
+    private final FileManager fileManager;
+
+    private final ExecutorService executor;
+
+    // Digest and read buffer of each worker thread
+    private final ThreadLocal<MessageDigest> digests;
+    private final ThreadLocal<ByteBuffer> readBuffers;
+
+    /**
+     * @param fileManager The file holding the pieces.
+     * @param threads     The number of worker threads.
+     */
+    public PieceVerifier(FileManager fileManager, int threads) {
+        this.fileManager = fileManager;
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "piece-verifier");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.digests = ThreadLocal.withInitial(PieceVerifier::newDigest);
+        this.readBuffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(READ_CHUNK_SIZE));
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform implements SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Computes the hash of a piece as it is stored in the file.
+     *
+     * @param pieceIndex The index of the piece.
+     * @return The hash, or null if the piece could not be read completely.
+     */
+    public byte[] hashPiece(int pieceIndex) {
+        MessageDigest digest = digests.get();
+        int pieceLength = fileManager.getPieceLength(pieceIndex);
+
+        ByteBuffer memoryPiece = fileManager.getMemoryBlock(pieceIndex, 0, pieceLength);
+        if (memoryPiece != null) {
+            digest.update(memoryPiece);
+            return digest.digest();
+        }
+
+        ByteBuffer buffer = readBuffers.get();
+        for (int offset = 0; offset < pieceLength;) {
+            buffer.clear();
+            buffer.limit(Math.min(buffer.capacity(), pieceLength - offset));
+            int read = fileManager.readBlock(buffer, pieceIndex, offset);
+            if (read < buffer.limit()) {
+                digest.reset();
+                return null;
+            }
+            buffer.flip();
+            digest.update(buffer);
+            offset += read;
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Computes the manifest of the file, hashing all pieces in parallel.
+     *
+     * @return The manifest.
+     * @throws IOException If a piece could not be read.
+     */
+    public PieceManifest computeManifest() throws IOException {
+        int numPieces = fileManager.getNumPieces();
+        List<Future<byte[]>> hashes = new ArrayList<>(numPieces);
+        for (int piece = 0; piece < numPieces; piece++) {
+            int pieceIndex = piece;
+            hashes.add(executor.submit(() -> hashPiece(pieceIndex)));
+        }
+
+        byte[] manifest = new byte[numPieces * PieceManifest.HASH_LENGTH];
+        try {
+            for (int piece = 0; piece < numPieces; piece++) {
+                byte[] hash = hashes.get(piece).get();
+                if (hash == null) {
+                    throw new IOException("Piece " + piece + " could not be read");
+                }
+                System.arraycopy(hash, 0, manifest, piece * PieceManifest.HASH_LENGTH, hash.length);
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException("Computing the piece manifest failed", e);
+        }
+        return new PieceManifest(manifest);
+    }
+
+    /**
+     * Checks pieces against the manifest, hashing them in parallel, and waits
+     * for the result.
+     *
+     * @param pieces   The pieces to check.
+     * @param manifest The manifest of the file.
+     * @return The pieces that match their hash.
+     */
+    public BitSet verifyAll(BitSet pieces, PieceManifest manifest) {
+        List<Future<Boolean>> results = new ArrayList<>();
+        for (int piece = pieces.nextSetBit(0); piece >= 0; piece = pieces.nextSetBit(piece + 1)) {
+            int pieceIndex = piece;
+            results.add(executor.submit(() -> manifest.matches(pieceIndex, hashPiece(pieceIndex))));
+        }
+
+        BitSet verified = new BitSet();
+        int i = 0;
+        for (int piece = pieces.nextSetBit(0); piece >= 0; piece = pieces.nextSetBit(piece + 1)) {
+            try {
+                if (results.get(i++).get()) {
+                    verified.set(piece);
+                }
+            } catch (InterruptedException | ExecutionException e) {
+                // Not verified, downloaded again
+            }
+        }
+        return verified;
+    }
+
+    /**
+     * Checks a piece against the manifest on a worker thread.
+     *
+     * @param pieceIndex The index of the piece.
+     * @param manifest   The manifest of the file.
+     * @param onVerified Called on the worker thread with true if the piece
+     *                   matches its hash.
+     */
+    public void verify(int pieceIndex, PieceManifest manifest, Consumer<Boolean> onVerified) {
+        executor.execute(() -> onVerified.accept(manifest.matches(pieceIndex, hashPiece(pieceIndex))));
+    }
+
+    /**
+     * Waits for the pieces being verified and stops the workers.
+     */
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,26 @@
+/**
+ * The Preallocation enum lists how the FileManager reserves space for the
+ * shared file at startup, selected with the Preallocation setting in
+ * Common.cfg. Either way the file has its final size before the first piece
+ * arrives, so pieces written in random order do not grow it piece by piece.
+ */
+public enum Preallocation {
+
+    // Only set the file length; the file system allocates blocks as they are
+    // written
+    SPARSE,
+
+    // Write zeros up to the file size, so the file system allocates all its
+    // blocks at once, as contiguously as it can
+    FULL;
+
+    /**
+     * Parses a Preallocation setting, ignoring case.
+     *
+     * @param value The configured value, e.g. "sparse" or "full".
+     * @return The matching mode.
+     */
+    public static Preallocation parse(String value) {
+        return Preallocation.valueOf(value.toUpperCase());
+    }
+}
@@ -0,0 +1,164 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The RequestPipeline class tracks the blocks requested over one connection
+ * that have not arrived yet, so that several requests can be in flight at
+ * once instead of waiting a round trip for every block. In endgame mode
+ * other connections remove blocks from it, so it is synchronized.
+ *
+ * Every request has a deadline, so a peer that stalls does not hold on to
+ * its blocks forever. The timeout adapts to the peer: the time from request
+ * to block is measured for every block that arrives and smoothed like TCP's
+ * round trip time estimate, and a request times out once it has been in
+ * flight for the smoothed time plus four times its variation.
+ */
+public class RequestPipeline {
+
+    // Bounds of the adaptive timeout
+    private static final long MIN_TIMEOUT_NANOS = 1_000_000_000L;
+    private final long maxTimeoutNanos;
+
+    // Maximum number of requests in flight
+    private final int depth;
+
+    // Blocks requested and not yet received, in request order, with the time
+    // each request was sent in System.nanoTime
+    private final Map<BlockRequest, Long> outstanding;
+
+    // Smoothed time from request to block and its mean deviation, 0 until
+    // the first block arrived
+    private long smoothedLatencyNanos;
+    private long latencyDeviationNanos;
+
+    /**
+     * @param depth         The maximum number of requests in flight.
+     * @param timeoutMillis The timeout of requests before any block arrived,
+     *                      and the upper bound of the adaptive timeout.
+     */
+    public RequestPipeline(int depth, int timeoutMillis) {
+        this.depth = depth;
+        this.maxTimeoutNanos = Math.max(MIN_TIMEOUT_NANOS, timeoutMillis * 1_000_000L);
+        this.outstanding = new LinkedHashMap<>();
+    }
+
+    /**
+     * Returns true if no more requests may be sent until a block arrives.
+     */
+    public synchronized boolean isFull() {
+        return outstanding.size() >= depth;
+    }
+
+    /**
+     * Records a request that has been sent.
+     *
+     * @param block The requested block.
+     */
+    public synchronized void add(BlockRequest block) {
+        outstanding.putIfAbsent(block, System.nanoTime());
+    }
+
+    /**
+     * Returns true if the block has been requested over this connection and
+     * not received yet.
+     *
+     * @param block The block.
+     */
+    public synchronized boolean contains(BlockRequest block) {
+        return outstanding.containsKey(block);
+    }
+
+    /**
+     * Matches a received block to its request, and takes the time it took
+     * into the latency estimate.
+     *
+     * @param block The received block.
+     * @return true if the block was requested over this connection.
+     */
+    public synchronized boolean remove(BlockRequest block) {
+        Long sentAt = outstanding.remove(block);
+        if (sentAt == null) {
+            return false;
+        }
+
+        long latency = System.nanoTime() - sentAt;
+        if (smoothedLatencyNanos == 0) {
+            smoothedLatencyNanos = latency;
+            latencyDeviationNanos = latency / 2;
+        } else {
+            // Gains of 1/4 and 1/8, as for TCP's retransmission timeout
+            latencyDeviationNanos += (Math.abs(smoothedLatencyNanos - latency) - latencyDeviationNanos) / 4;
+            smoothedLatencyNanos += (latency - smoothedLatencyNanos) / 8;
+        }
+        return true;
+    }
+
+    /**
+     * Cancels a request without taking it into the latency estimate, e.g.
+     * when another connection delivered the block.
+     *
+     * @param block The block.
+     * @return true if the block was requested over this connection.
+     */
+    public synchronized boolean cancel(BlockRequest block) {
+        return outstanding.remove(block) != null;
+    }
+
+    /**
+     * Removes and returns the requests that have been in flight longer than
+     * the timeout.
+     *
+     * @param now The current time in System.nanoTime.
+     * @return The timed out requests in request order.
+     */
+    public synchronized List<BlockRequest> removeExpired(long now) {
+        List<BlockRequest> expired = new ArrayList<>();
+        long timeout = getTimeoutNanos();
+
+        Iterator<Map.Entry<BlockRequest, Long>> requests = outstanding.entrySet().iterator();
+        while (requests.hasNext()) {
+            Map.Entry<BlockRequest, Long> request = requests.next();
+            if (now - request.getValue() < timeout) {
+                // Later requests were sent later
+                break;
+            }
+            expired.add(request.getKey());
+            requests.remove();
+        }
+        return expired;
+    }
+
+    /**
+     * Returns the current timeout of requests in nanoseconds.
+     */
+    public synchronized long getTimeoutNanos() {
+        if (smoothedLatencyNanos == 0) {
+            return maxTimeoutNanos;
+        }
+        long timeout = smoothedLatencyNanos + 4 * latencyDeviationNanos;
+        return Math.min(Math.max(timeout, MIN_TIMEOUT_NANOS), maxTimeoutNanos);
+    }
+
+    /**
+     * Removes and returns every outstanding request, e.g. when the connection
+     * is closed.
+     *
+     * @return The requests in request order.
+     */
+    public synchronized List<BlockRequest> clear() {
+        List<BlockRequest> blocks = new ArrayList<>(outstanding.keySet());
+        outstanding.clear();
+        return blocks;
+    }
+
+    public synchronized int size() {
+        return outstanding.size();
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+}
@@ -0,0 +1,23 @@
+/**
+ * The StorageMode enum lists the ways the FileManager can access the shared
+ * file, selected at startup with the StorageMode setting in Common.cfg.
+ */
+public enum StorageMode {
+
+    // Reads and writes go through the file channel
+    FILE,
+
+    // The file is memory-mapped, and blocks are copied to and from the mapping
+    // without locking
+    MMAP;
+
+    /**
+     * Parses a StorageMode setting, ignoring case.
+     *
+     * @param value The configured value, e.g. "file" or "mmap".
+     * @return The matching mode.
+     */
+    public static StorageMode parse(String value) {
+        return StorageMode.valueOf(value.toUpperCase());
+    }
+}
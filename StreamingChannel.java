@@ -0,0 +1,164 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * The StreamingChannel class reads the shared file while it is being
+ * downloaded. A read waits until the piece holding the position has been
+ * downloaded and verified, then returns the bytes of that piece the buffer
+ * has room for. Every read moves the window of streaming piece selection to
+ * the piece being read, so the pieces right after it are downloaded next.
+ * Channels.newInputStream turns it into a blocking InputStream.
+ */
+public class StreamingChannel implements SeekableByteChannel {
+
+    // How long a read waits for a piece before checking whether the channel
+    // was closed
+    private static final long WAIT_MILLIS = 100;
+
+    private final FileManager fileManager;
+
+    // This peer's pieces, set as they are verified
+    private final BitfieldManager bitfieldManager;
+
+    private final PiecePicker piecePicker;
+
+    // Offset in the file the next read starts at
+    private long position;
+
+    private volatile boolean open;
+
+    /**
+     * @param fileManager     The shared file.
+     * @param bitfieldManager This peer's bitfield.
+     * @param piecePicker     The picker whose streaming window follows the
+     *                        reads.
+     */
+    public StreamingChannel(FileManager fileManager, BitfieldManager bitfieldManager, PiecePicker piecePicker) {
+        this.fileManager = fileManager;
+        this.bitfieldManager = bitfieldManager;
+        this.piecePicker = piecePicker;
+        this.open = true;
+    }
+
+    /**
+     * Reads from the current position, waiting until the piece holding it
+     * has been downloaded. Reads at most up to the end of that piece.
+     *
+     * @return The number of bytes read, or -1 at the end of the file.
+     * @throws InterruptedIOException If the thread was interrupted while
+     *                                waiting.
+     * @throws IOException            If the channel is closed or the piece
+     *                                could not be read.
+     */
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        ensureOpen();
+        if (position >= fileManager.getFileSize()) {
+            return -1;
+        }
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+
+        int piece = (int) (position / fileManager.getPieceSize());
+        int offset = (int) (position - fileManager.getPieceOffset(piece));
+        piecePicker.setStreamPosition(piece);
+        awaitPiece(piece);
+
+        ByteBuffer view = dst.duplicate();
+        view.limit(view.position() + Math.min(dst.remaining(), fileManager.getPieceLength(piece) - offset));
+        int read = fileManager.readBlock(view, piece, offset);
+        if (read <= 0) {
+            throw new IOException("Piece " + piece + " could not be read");
+        }
+        dst.position(dst.position() + read);
+        position += read;
+        return read;
+    }
+
+    private void awaitPiece(int piece) throws IOException {
+        try {
+            while (!bitfieldManager.awaitPiece(piece, WAIT_MILLIS)) {
+                ensureOpen();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for piece " + piece);
+        }
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    /**
+     * The channel is read-only.
+     *
+     * @throws NonWritableChannelException Always.
+     */
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    /**
+     * Moves the position the next read starts at, and the streaming window
+     * with it.
+     *
+     * @param newPosition The offset in the file.
+     * @return This channel.
+     */
+    @Override
+    public synchronized SeekableByteChannel position(long newPosition) throws IOException {
+        ensureOpen();
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Negative position " + newPosition);
+        }
+        position = newPosition;
+        if (position < fileManager.getFileSize()) {
+            piecePicker.setStreamPosition((int) (position / fileManager.getPieceSize()));
+        }
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        ensureOpen();
+        return fileManager.getFileSize();
+    }
+
+    /**
+     * The channel is read-only.
+     *
+     * @throws NonWritableChannelException Always.
+     */
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Closes the channel. A read waiting for a piece fails shortly after.
+     */
+    @Override
+    public void close() {
+        open = false;
+    }
+}